@@ -1,6 +1,7 @@
 package org.thobe.indy.proxy;
 
 import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
@@ -8,7 +9,12 @@ import java.util.Arrays;
 
 import static java.lang.invoke.MethodHandles.dropArguments;
 import static java.lang.invoke.MethodHandles.explicitCastArguments;
+import static java.lang.invoke.MethodHandles.filterArguments;
+import static java.lang.invoke.MethodHandles.filterReturnValue;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.identity;
 import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodHandles.permuteArguments;
 import static java.lang.invoke.MethodHandles.lookup;
 import static java.lang.invoke.MethodHandles.throwException;
 import static java.lang.invoke.MethodType.methodType;
@@ -16,21 +22,58 @@ import static java.lang.invoke.MethodType.methodType;
 public abstract class Bootstrap<STATE>
 {
     final Class<STATE> stateType;
+    final Class<?>[] stateLayout;
 
     public Bootstrap( Class<STATE> stateType )
     {
         this.stateType = stateType;
+        this.stateLayout = new Class<?>[]{stateType};
+    }
+
+    @SuppressWarnings("unchecked"/*the state of a flattened layout is only ever seen field by field*/)
+    protected Bootstrap( Class<?> first, Class<?> second, Class<?>... more )
+    {
+        this.stateType = (Class<STATE>) Object[].class;
+        this.stateLayout = new Class<?>[more.length + 2];
+        this.stateLayout[0] = first;
+        this.stateLayout[1] = second;
+        System.arraycopy( more, 0, stateLayout, 2, more.length );
     }
 
     @SuppressWarnings("unused"/*called from bootstrap methods*/)
     public abstract CallSite bootstrap( Class<?> proxyClass, MethodHandles.Lookup lookup, String name,
                                         MethodType signature );
 
+    @SuppressWarnings("unused"/*called from bootstrap methods of striped proxies*/)
+    public CallSite combine( Class<?> proxyClass, MethodHandles.Lookup lookup, String name, MethodType signature )
+    {
+        return new ConstantCallSite( unsupportedOperation( signature ) );
+    }
+
+    @SuppressWarnings("unused"/*called from bootstrap methods of constant proxies*/)
+    public final CallSite bindConstant( Object state, Class<?> proxyClass, MethodHandles.Lookup lookup, String name,
+                                        MethodType signature )
+    {
+        // the state becomes part of the linked target, the call site of a constant proxy does not pass it
+        MethodHandle target = bootstrap( proxyClass, lookup, name, signature.insertParameterTypes( 0, stateType ) )
+                .dynamicInvoker();
+        return new ConstantCallSite( insertArguments( target, 0, state ) );
+    }
+
+    protected boolean overrides( String name, MethodType signature )
+    {
+        return false;
+    }
+
     protected final MethodHandle defaultImplementationOf( Class<?> proxyClass, MethodHandles.Lookup lookup, String name,
                                                           MethodType signature )
     {
         try
         {
+            if ( stateLayout.length > 1 )
+            {
+                return defaultFlatImplementationOf( proxyClass, lookup, name, signature );
+            }
             if ( name.equals( "toString" ) && equals( signature, String.class, stateType ) )
             {
                 return explicitCastArguments(
@@ -47,7 +90,7 @@ public abstract class Bootstrap<STATE>
                 return insertArguments(
                         explicitCastArguments( DEFAULT_EQUALS, methodType(
                                 boolean.class, Class.class, MethodHandle.class, stateType, Object.class ) ),
-                        0, proxyClass, lookup.findGetter( proxyClass, "state", stateType ) );
+                        0, proxyClass, stateGetter( proxyClass, lookup ) );
             }
             return null;
         }
@@ -57,6 +100,66 @@ public abstract class Bootstrap<STATE>
         }
     }
 
+    private MethodHandle defaultFlatImplementationOf( Class<?> proxyClass, MethodHandles.Lookup lookup, String name,
+                                                      MethodType signature )
+            throws NoSuchFieldException, IllegalAccessException
+    {
+        MethodType fields = methodType( Object[].class, stateLayout );
+        if ( name.equals( "toString" ) && signature.equals( fields.changeReturnType( String.class ) ) )
+        {
+            return filterReturnValue( collectFields( fields ), FLAT_TO_STRING );
+        }
+        if ( name.equals( "hashCode" ) && signature.equals( fields.changeReturnType( int.class ) ) )
+        {
+            return filterReturnValue( collectFields( fields ), FLAT_HASH_CODE );
+        }
+        if ( name.equals( "equals" )
+             && signature.equals( fields.changeReturnType( boolean.class ).appendParameterTypes( Object.class ) ) )
+        {
+            MethodHandle[] getters = new MethodHandle[stateLayout.length];
+            for ( int i = 0; i < getters.length; i++ )
+            {
+                getters[i] = lookup.findGetter( proxyClass, "state" + i, stateLayout[i] );
+            }
+            MethodHandle stateGetter = permuteArguments(
+                    filterArguments( collectFields( fields ), 0, getters ),
+                    methodType( Object[].class, proxyClass ), new int[getters.length] );
+            int[] reorder = new int[getters.length + 1];
+            reorder[0] = getters.length;
+            for ( int i = 1; i < reorder.length; i++ )
+            {
+                reorder[i] = i - 1;
+            }
+            return permuteArguments(
+                    insertArguments( FLAT_EQUALS, 0, proxyClass,
+                                     stateGetter.asType( methodType( Object[].class, Object.class ) ) )
+                            .asCollector( Object[].class, getters.length )
+                            .asType( signature.dropParameterTypes( getters.length, getters.length + 1 )
+                                              .insertParameterTypes( 0, Object.class ) ),
+                    signature, reorder );
+        }
+        return null;
+    }
+
+    private static MethodHandle collectFields( MethodType fields )
+    {
+        return identity( Object[].class ).asCollector( Object[].class, fields.parameterCount() ).asType( fields );
+    }
+
+    private MethodHandle stateGetter( Class<?> proxyClass, MethodHandles.Lookup lookup )
+            throws NoSuchFieldException, IllegalAccessException
+    {
+        try
+        {
+            // proxies that compute their state on demand declare a private accessor for it
+            return lookup.findVirtual( proxyClass, "state", methodType( stateType ) );
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return lookup.findGetter( proxyClass, "state", stateType );
+        }
+    }
+
     private static boolean equals( MethodType signature, Class<?> returnType, Class<?>... parameterTypes )
     {
         return signature.returnType() == returnType && Arrays.equals( signature.parameterArray(), parameterTypes );
@@ -64,8 +167,24 @@ public abstract class Bootstrap<STATE>
 
     protected final MethodHandle unsupportedOperation( MethodType signature )
     {
-        return dropArguments( throwException( signature.returnType(), UnsupportedOperationException.class ),
-                              0, signature.parameterArray() );
+        return dropArguments( foldArguments( throwException( signature.returnType(),
+                                                             UnsupportedOperationException.class ),
+                                             NEW_UNSUPPORTED_OPERATION ), 0, signature.parameterArray() );
+    }
+
+    private static final MethodHandle NEW_UNSUPPORTED_OPERATION;
+
+    static
+    {
+        try
+        {
+            NEW_UNSUPPORTED_OPERATION =
+                    lookup().findConstructor( UnsupportedOperationException.class, methodType( void.class ) );
+        }
+        catch ( NoSuchMethodException | IllegalAccessException e )
+        {
+            throw new LinkageError( "Could not find UnsupportedOperationException constructor", e );
+        }
     }
 
     private static final MethodHandle DEFAULT_EQUALS =
@@ -84,6 +203,36 @@ public abstract class Bootstrap<STATE>
         }
     }
 
+    private static final MethodHandle FLAT_TO_STRING = flatHelper( String.class, "toString" ),
+            FLAT_HASH_CODE = flatHelper( int.class, "hashCode" ),
+            FLAT_EQUALS = helper( boolean.class, "defaultFlatEquals",
+                                  Class.class, MethodHandle.class, Object.class, Object[].class );
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static boolean defaultFlatEquals( Class<?> type, MethodHandle stateGetter, Object that, Object[] state )
+    {
+        try
+        {
+            return type.isInstance( that ) && Arrays.equals( state, (Object[]) stateGetter.invoke( that ) );
+        }
+        catch ( Throwable throwable )
+        {
+            return false;
+        }
+    }
+
+    private static MethodHandle flatHelper( Class<?> returnType, String name )
+    {
+        try
+        {
+            return lookup().findStatic( Arrays.class, name, methodType( returnType, Object[].class ) );
+        }
+        catch ( NoSuchMethodException | IllegalAccessException e )
+        {
+            throw new LinkageError( "Could not find: " + name, e );
+        }
+    }
+
     private static MethodHandle helper( Class<?> returnType, String name, Class<?>... parameterTypes )
     {
         try
@@ -0,0 +1,34 @@
+package org.thobe.indy.proxy;
+
+import java.util.concurrent.RecursiveAction;
+
+public abstract class BulkInvocation extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+    protected final int threshold, from, to;
+
+    protected BulkInvocation( int threshold, int from, int to )
+    {
+        this.threshold = threshold;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected final void compute()
+    {
+        if ( to - from <= threshold )
+        {
+            invoke( from, to );
+        }
+        else
+        {
+            int mid = (from + to) >>> 1;
+            invokeAll( split( from, mid ), split( mid, to ) );
+        }
+    }
+
+    protected abstract void invoke( int from, int to );
+
+    protected abstract BulkInvocation split( int from, int to );
+}
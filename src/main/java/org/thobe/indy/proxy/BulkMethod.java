@@ -0,0 +1,381 @@
+package org.thobe.indy.proxy;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+class BulkMethod
+{
+    private static final String SUPER = Type.getInternalName( BulkInvocation.class );
+    private final Class<?> bulkType;
+    private final Method bulk, target;
+    private final Class<?> stateType;
+    private final Type[] fields;
+
+    private BulkMethod( Class<?> bulkType, Method bulk, Method target, Class<?> stateType )
+    {
+        this.bulkType = bulkType;
+        this.bulk = bulk;
+        this.target = target;
+        this.stateType = stateType;
+        this.fields = Type.getArgumentTypes( bulk );
+    }
+
+    static BulkMethod bulkMethod( Class<?> bulkType, Class<?> proxyClass, Class<?> stateType )
+    {
+        if ( !accessible( bulkType, proxyClass ) )
+        {
+            throw new IllegalArgumentException(
+                    "Bulk type " + bulkType.getName() + " is not accessible from " + proxyClass.getName() );
+        }
+        Method bulk = null;
+        for ( Method method : bulkType.isInterface() ? bulkType.getMethods() : new Method[0] )
+        {
+            if ( Modifier.isAbstract( method.getModifiers() ) )
+            {
+                if ( bulk != null )
+                {
+                    bulk = null;
+                    break;
+                }
+                bulk = method;
+            }
+        }
+        if ( bulk == null )
+        {
+            throw new IllegalArgumentException(
+                    "Bulk type must be an interface with a single abstract method: " + bulkType.getName() );
+        }
+        Class<?>[] parameters = bulk.getParameterTypes();
+        if ( bulk.getReturnType() != void.class || parameters.length == 0 || !(parameters[0] == List.class || (
+                parameters[0].isArray() && stateType.isAssignableFrom( parameters[0].getComponentType() ))) )
+        {
+            throw new IllegalArgumentException(
+                    "Bulk method " + bulk + " must return void and take the states as its first parameter." );
+        }
+        // the proxied interfaces, and equals, hashCode and toString that every proxy implements as well
+        Class<?>[] interfaceTypes = proxyClass.getInterfaces();
+        Class<?>[] types = Arrays.copyOf( interfaceTypes, interfaceTypes.length + 1 );
+        types[interfaceTypes.length] = Object.class;
+        for ( Class<?> type : types )
+        {
+            for ( Method target : type.getMethods() )
+            {
+                if ( target.getName().equals( bulk.getName() ) && !Modifier.isFinal( target.getModifiers() )
+                     && matches( parameters, target ) )
+                {
+                    return new BulkMethod( bulkType, bulk, target, stateType );
+                }
+            }
+        }
+        throw new IllegalArgumentException( "No proxied method matches bulk method " + bulk );
+    }
+
+    private static boolean accessible( Class<?> type, Class<?> from )
+    {
+        return Modifier.isPublic( type.getModifiers() )
+               || (type.getClassLoader() == from.getClassLoader() && packageName( type ).equals( packageName( from ) ));
+    }
+
+    private static String packageName( Class<?> type )
+    {
+        String name = type.getName();
+        return name.substring( 0, Math.max( 0, name.lastIndexOf( '.' ) ) );
+    }
+
+    private static boolean matches( Class<?>[] parameters, Method target )
+    {
+        int offset = 1;
+        Class<?> result = target.getReturnType();
+        if ( result != void.class )
+        {
+            if ( parameters.length < 2 || !parameters[1].isArray() )
+            {
+                return false;
+            }
+            Class<?> component = parameters[1].getComponentType();
+            if ( component != result && (result.isPrimitive() || !component.isAssignableFrom( result )) )
+            {
+                return false;
+            }
+            offset = 2;
+        }
+        Class<?>[] arguments = target.getParameterTypes();
+        if ( parameters.length - offset != arguments.length )
+        {
+            return false;
+        }
+        for ( int i = 0; i < arguments.length; i++ )
+        {
+            Class<?> parameter = parameters[i + offset];
+            if ( parameter != arguments[i] && !(parameter.isArray() && parameter.getComponentType() == arguments[i]) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    byte[] generateClass( String className, String proxyClassName )
+    {
+        ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_FRAMES );
+        cw.visit( Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, className, null, SUPER,
+                  new String[]{Type.getInternalName( bulkType )} );
+
+        cw.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "bootstrap", Type.getDescriptor( Bootstrap.class ),
+                       null, null );
+        for ( int i = 0; i < fields.length; i++ )
+        {
+            cw.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "p" + i, fields[i].getDescriptor(), null, null );
+        }
+
+        generatePrototypeConstructor( cw );
+        generateConstructor( className, cw );
+        generateBulkMethod( className, cw );
+        generateInvoke( className, cw );
+        generateSplit( className, cw );
+        MethodInfo.BootstrapMethod bsm = MethodInfo.bootstrapMethod( className, "bootstrap", proxyClassName );
+        generateLoop( className, cw, bsm );
+        bsm.generateMethod( className, null, cw, bsm );
+
+        cw.visitEnd();
+
+        return cw.toByteArray();
+    }
+
+    private static void generatePrototypeConstructor( ClassWriter cw )
+    {
+        MethodVisitor method = cw.visitMethod( Opcodes.ACC_PUBLIC, "<init>", "(I)V", null, null );
+        method.visitCode();
+        method.visitVarInsn( Opcodes.ALOAD, 0 );
+        method.visitVarInsn( Opcodes.ILOAD, 1 );
+        method.visitInsn( Opcodes.ICONST_0 );
+        method.visitInsn( Opcodes.ICONST_0 );
+        method.visitMethodInsn( Opcodes.INVOKESPECIAL, SUPER, "<init>", "(III)V" );
+        method.visitInsn( Opcodes.RETURN );
+        method.visitMaxs( 4, 2 );
+        method.visitEnd();
+    }
+
+    private void generateConstructor( String className, ClassWriter cw )
+    {
+        MethodVisitor method = cw.visitMethod( Opcodes.ACC_PRIVATE, "<init>", taskDescriptor(), null, null );
+        method.visitCode();
+        method.visitVarInsn( Opcodes.ALOAD, 0 );
+        method.visitVarInsn( Opcodes.ILOAD, 1 );
+        method.visitVarInsn( Opcodes.ILOAD, 2 );
+        method.visitVarInsn( Opcodes.ILOAD, 3 );
+        method.visitMethodInsn( Opcodes.INVOKESPECIAL, SUPER, "<init>", "(III)V" );
+        for ( int i = 0, local = 4; i < fields.length; local += fields[i++].getSize() )
+        {
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitVarInsn( fields[i].getOpcode( Opcodes.ILOAD ), local );
+            method.visitFieldInsn( Opcodes.PUTFIELD, className, "p" + i, fields[i].getDescriptor() );
+        }
+        method.visitInsn( Opcodes.RETURN );
+        method.visitMaxs( 0, 0 );
+        method.visitEnd();
+    }
+
+    private void generateBulkMethod( String className, ClassWriter cw )
+    {
+        MethodVisitor method = cw.visitMethod( Opcodes.ACC_PUBLIC, bulk.getName(), Type.getMethodDescriptor( bulk ),
+                                               null, null );
+        method.visitCode();
+        int count = 1;
+        for ( Type field : fields )
+        {
+            count += field.getSize();
+        }
+        method.visitVarInsn( Opcodes.ALOAD, 1 );
+        generateCount( method );
+        method.visitVarInsn( Opcodes.ISTORE, count );
+
+        // large batches are split over the common fork join pool, anything else runs right here
+        Label sequential = new Label();
+        method.visitVarInsn( Opcodes.ILOAD, count );
+        method.visitVarInsn( Opcodes.ALOAD, 0 );
+        method.visitFieldInsn( Opcodes.GETFIELD, SUPER, "threshold", "I" );
+        method.visitJumpInsn( Opcodes.IF_ICMPLE, sequential );
+        method.visitMethodInsn( Opcodes.INVOKESTATIC, Type.getInternalName( ForkJoinPool.class ), "commonPool",
+                                Type.getMethodDescriptor( Type.getType( ForkJoinPool.class ) ) );
+        method.visitTypeInsn( Opcodes.NEW, className );
+        method.visitInsn( Opcodes.DUP );
+        method.visitVarInsn( Opcodes.ALOAD, 0 );
+        method.visitFieldInsn( Opcodes.GETFIELD, SUPER, "threshold", "I" );
+        method.visitInsn( Opcodes.ICONST_0 );
+        method.visitVarInsn( Opcodes.ILOAD, count );
+        loadParameters( method, 1 );
+        method.visitMethodInsn( Opcodes.INVOKESPECIAL, className, "<init>", taskDescriptor() );
+        method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, Type.getInternalName( ForkJoinPool.class ), "invoke",
+                                Type.getMethodDescriptor( Type.getType( Object.class ),
+                                                          Type.getType( ForkJoinTask.class ) ) );
+        method.visitInsn( Opcodes.POP );
+        method.visitInsn( Opcodes.RETURN );
+
+        method.visitLabel( sequential );
+        method.visitInsn( Opcodes.ICONST_0 );
+        method.visitVarInsn( Opcodes.ILOAD, count );
+        loadParameters( method, 1 );
+        method.visitMethodInsn( Opcodes.INVOKESTATIC, className, "loop", loopDescriptor() );
+        method.visitInsn( Opcodes.RETURN );
+        method.visitMaxs( 0, 0 );
+        method.visitEnd();
+    }
+
+    private void generateInvoke( String className, ClassWriter cw )
+    {
+        MethodVisitor method = cw.visitMethod( Opcodes.ACC_PROTECTED, "invoke", "(II)V", null, null );
+        method.visitCode();
+        method.visitVarInsn( Opcodes.ILOAD, 1 );
+        method.visitVarInsn( Opcodes.ILOAD, 2 );
+        loadFields( className, method );
+        method.visitMethodInsn( Opcodes.INVOKESTATIC, className, "loop", loopDescriptor() );
+        method.visitInsn( Opcodes.RETURN );
+        method.visitMaxs( 0, 0 );
+        method.visitEnd();
+    }
+
+    private void generateSplit( String className, ClassWriter cw )
+    {
+        MethodVisitor method = cw.visitMethod( Opcodes.ACC_PROTECTED, "split",
+                                               Type.getMethodDescriptor( Type.getObjectType( SUPER ), Type.INT_TYPE,
+                                                                         Type.INT_TYPE ), null, null );
+        method.visitCode();
+        method.visitTypeInsn( Opcodes.NEW, className );
+        method.visitInsn( Opcodes.DUP );
+        method.visitVarInsn( Opcodes.ALOAD, 0 );
+        method.visitFieldInsn( Opcodes.GETFIELD, SUPER, "threshold", "I" );
+        method.visitVarInsn( Opcodes.ILOAD, 1 );
+        method.visitVarInsn( Opcodes.ILOAD, 2 );
+        loadFields( className, method );
+        method.visitMethodInsn( Opcodes.INVOKESPECIAL, className, "<init>", taskDescriptor() );
+        method.visitInsn( Opcodes.ARETURN );
+        method.visitMaxs( 0, 0 );
+        method.visitEnd();
+    }
+
+    private void generateLoop( String className, ClassWriter cw, MethodInfo.BootstrapMethod bsm )
+    {
+        MethodVisitor method = cw.visitMethod( Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "loop", loopDescriptor(),
+                                               null, null );
+        method.visitCode();
+        int[] locals = new int[fields.length];
+        int i = 2;
+        for ( int p = 0; p < fields.length; i += fields[p++].getSize() )
+        {
+            locals[p] = i;
+        }
+        Type result = Type.getType( target.getReturnType() );
+        int offset = result == Type.VOID_TYPE ? 1 : 2;
+        Class<?>[] arguments = target.getParameterTypes();
+
+        // for ( int i = from; i < to; i++ ) results[i] = indy( states[i], broadcast or argument[i]... );
+        Label loop = new Label(), done = new Label();
+        method.visitVarInsn( Opcodes.ILOAD, 0 );
+        method.visitVarInsn( Opcodes.ISTORE, i );
+        method.visitLabel( loop );
+        method.visitVarInsn( Opcodes.ILOAD, i );
+        method.visitVarInsn( Opcodes.ILOAD, 1 );
+        method.visitJumpInsn( Opcodes.IF_ICMPGE, done );
+        if ( offset == 2 )
+        {
+            method.visitVarInsn( Opcodes.ALOAD, locals[1] );
+            method.visitVarInsn( Opcodes.ILOAD, i );
+        }
+        method.visitVarInsn( Opcodes.ALOAD, locals[0] );
+        method.visitVarInsn( Opcodes.ILOAD, i );
+        if ( fields[0].getSort() == Type.ARRAY )
+        {
+            method.visitInsn( Opcodes.AALOAD );
+        }
+        else
+        {
+            method.visitMethodInsn( Opcodes.INVOKEINTERFACE, Type.getInternalName( List.class ), "get",
+                                    Type.getMethodDescriptor( Type.getType( Object.class ), Type.INT_TYPE ) );
+            method.visitTypeInsn( Opcodes.CHECKCAST, Type.getInternalName( stateType ) );
+        }
+        Type[] signature = new Type[arguments.length + 1];
+        signature[0] = Type.getType( stateType );
+        for ( int a = 0; a < arguments.length; a++ )
+        {
+            Type argument = signature[a + 1] = Type.getType( arguments[a] );
+            Type field = fields[a + offset];
+            method.visitVarInsn( field.getOpcode( Opcodes.ILOAD ), locals[a + offset] );
+            if ( !field.equals( argument ) )
+            {
+                method.visitVarInsn( Opcodes.ILOAD, i );
+                method.visitInsn( argument.getOpcode( Opcodes.IALOAD ) );
+            }
+        }
+        method.visitInvokeDynamicInsn( target.getName(), Type.getMethodDescriptor( result, signature ), bsm.handle );
+        if ( offset == 2 )
+        {
+            method.visitInsn( result.getOpcode( Opcodes.IASTORE ) );
+        }
+        method.visitIincInsn( i, 1 );
+        method.visitJumpInsn( Opcodes.GOTO, loop );
+        method.visitLabel( done );
+        method.visitInsn( Opcodes.RETURN );
+        method.visitMaxs( 0, 0 );
+        method.visitEnd();
+    }
+
+    private void generateCount( MethodVisitor method )
+    {
+        if ( fields[0].getSort() == Type.ARRAY )
+        {
+            method.visitInsn( Opcodes.ARRAYLENGTH );
+        }
+        else
+        {
+            method.visitMethodInsn( Opcodes.INVOKEINTERFACE, Type.getInternalName( List.class ), "size", "()I" );
+        }
+    }
+
+    private void loadParameters( MethodVisitor method, int local )
+    {
+        for ( Type field : fields )
+        {
+            method.visitVarInsn( field.getOpcode( Opcodes.ILOAD ), local );
+            local += field.getSize();
+        }
+    }
+
+    private void loadFields( String className, MethodVisitor method )
+    {
+        for ( int i = 0; i < fields.length; i++ )
+        {
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, "p" + i, fields[i].getDescriptor() );
+        }
+    }
+
+    private String taskDescriptor()
+    {
+        return Type.getMethodDescriptor( Type.VOID_TYPE, prepend( fields, Type.INT_TYPE, Type.INT_TYPE,
+                                                                  Type.INT_TYPE ) );
+    }
+
+    private String loopDescriptor()
+    {
+        return Type.getMethodDescriptor( Type.VOID_TYPE, prepend( fields, Type.INT_TYPE, Type.INT_TYPE ) );
+    }
+
+    private static Type[] prepend( Type[] types, Type... first )
+    {
+        Type[] result = new Type[first.length + types.length];
+        System.arraycopy( first, 0, result, 0, first.length );
+        System.arraycopy( types, 0, result, first.length, types.length );
+        return result;
+    }
+}
@@ -3,10 +3,13 @@ package org.thobe.indy.proxy;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -14,13 +17,16 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.util.CheckClassAdapter;
 
+import static java.lang.invoke.MethodHandles.insertArguments;
 import static java.lang.invoke.MethodHandles.publicLookup;
 import static java.lang.invoke.MethodType.methodType;
 import static java.util.Collections.addAll;
@@ -33,14 +39,257 @@ public class IndyProxy<S, T>
     public static <S, T> IndyProxy<S, T> createProxyFactory( ClassLoader loader, Bootstrap<S> bootstrap,
                                                              Class<? extends T>... interfaceTypes )
     {
+        return createProxyFactory( loader, bootstrap, ProxyState.eager( bootstrap.stateType ),
+                                   generateMethods( interfaceTypes ), interfaceTypes );
+    }
+
+    @SafeVarargs
+    public static <S, T> IndyProxy<Supplier<? extends S>, T> createLazyProxyFactory(
+            ClassLoader loader, Bootstrap<S> bootstrap, Class<? extends T>... interfaceTypes )
+    {
+        return createProxyFactory( loader, bootstrap, ProxyState.lazy( bootstrap.stateType ),
+                                   generateMethods( interfaceTypes ), interfaceTypes );
+    }
+
+    @SafeVarargs
+    public static <S, T> IndyProxy<S, T> createForwardingProxyFactory( ClassLoader loader, Bootstrap<S> bootstrap,
+                                                                       Class<? extends T>... interfaceTypes )
+    {
+        List<MethodInfo> methods = new ArrayList<>();
+        for ( MethodInfo method : generateMethods( interfaceTypes ) )
+        {
+            methods.add( method.forwardingTo( bootstrap ) );
+        }
+        return createProxyFactory( loader, bootstrap, ProxyState.eager( bootstrap.stateType ), methods,
+                                   interfaceTypes );
+    }
+
+    @SafeVarargs
+    public static <S, T> IndyProxy<S, T> createGuardedProxyFactory( ClassLoader loader, Bootstrap<S> bootstrap,
+                                                                    LockMode mode,
+                                                                    Class<? extends T>... interfaceTypes )
+    {
+        List<MethodInfo> methods = new ArrayList<>();
+        for ( MethodInfo method : generateMethods( interfaceTypes ) )
+        {
+            methods.add( method.guardedBy( mode ) );
+        }
+        return createProxyFactory( loader, bootstrap, ProxyState.guarded( ProxyState.eager( bootstrap.stateType ),
+                                                                          mode ), methods, interfaceTypes );
+    }
+
+    @SafeVarargs
+    public static <S, T> IndyProxy<Supplier<? extends S>, T> createStripedProxyFactory(
+            ClassLoader loader, Bootstrap<S> bootstrap, Class<? extends T>... interfaceTypes )
+    {
+        return stripedProxyFactory( loader, bootstrap, Runtime.getRuntime().availableProcessors(), interfaceTypes );
+    }
+
+    @SafeVarargs
+    public static <S, T> IndyProxy<Supplier<? extends S>, T> createStripedProxyFactory(
+            ClassLoader loader, Bootstrap<S> bootstrap, int stripes, Class<? extends T>... interfaceTypes )
+    {
+        return stripedProxyFactory( loader, bootstrap, stripes, interfaceTypes );
+    }
+
+    private static <S, T> IndyProxy<S, T> stripedProxyFactory( ClassLoader loader, Bootstrap<?> bootstrap,
+                                                               int stripes, Class<?>... interfaceTypes )
+    {
+        if ( stripes <= 0 )
+        {
+            throw new IllegalArgumentException( "Number of stripes must be positive: " + stripes );
+        }
+        List<MethodInfo> methods = new ArrayList<>();
+        for ( MethodInfo method : generateMethods( interfaceTypes ) )
+        {
+            // identity based equality, all stripes together are the state of the proxy
+            if ( !method.isObjectMethod() )
+            {
+                methods.add( method.striped() );
+            }
+        }
+        return createProxyFactory( loader, bootstrap, ProxyState.striped( bootstrap.stateType, Integer.highestOneBit(
+                (stripes << 1) - 1 ) ), methods, interfaceTypes );
+    }
+
+    private static <S, T> IndyProxy<S, T> createProxyFactory( ClassLoader loader, Bootstrap<?> bootstrap,
+                                                              ProxyState state, Collection<MethodInfo> proxyMethods,
+                                                              Class<?>... interfaceTypes )
+    {
+        if ( bootstrap.stateLayout.length != 1 || bootstrap.stateType.isPrimitive() )
+        {
+            throw new IllegalArgumentException(
+                    "Proxies with a flattened or primitive state layout are created through createFlatProxyFactory." );
+        }
+        List<MethodInfo> methods = new ArrayList<>( proxyMethods );
+        methods.add( MethodInfo.constructor( state ) );
+        String name = proxyClassName( loader, setOf( bootstrap.stateType, interfaceTypes ) );
+        byte[] byteCode = generateProxyClass( name.replace( '.', '/' ), state, methods, interfaceTypes );
+        verify( loader, byteCode );
+        return define( loader, name, byteCode, bootstrap );
+    }
+
+    @SafeVarargs
+    public static <S, T> T createConstantProxy( ClassLoader loader, Bootstrap<S> bootstrap, S state,
+                                                Class<? extends T>... interfaceTypes )
+    {
+        if ( bootstrap.stateLayout.length != 1 || bootstrap.stateType.isPrimitive() )
+        {
+            throw new IllegalArgumentException( "Constant proxies require a single reference state." );
+        }
+        if ( state == null )
+        {
+            throw new IllegalArgumentException( "The state of a constant proxy must not be null." );
+        }
+        ProxyState constant = ProxyState.constant( bootstrap.stateType );
         List<MethodInfo> methods = new ArrayList<>( generateMethods( interfaceTypes ) );
-        methods.add( MethodInfo.constructor() );
+        methods.add( MethodInfo.constructor( constant ) );
         String name = proxyClassName( loader, setOf( bootstrap.stateType, interfaceTypes ) );
-        byte[] byteCode = generateProxyClass( name.replace( '.', '/' ), bootstrap.stateType, methods, interfaceTypes );
+        byte[] byteCode = generateProxyClass( name.replace( '.', '/' ), constant, methods, interfaceTypes );
+        verify( loader, byteCode );
+        Class<?> proxyClass = defineClass( loader, name, byteCode );
+        setStatic( proxyClass, "state", bootstrap.stateType.cast( state ) );
+        setBootstrap( proxyClass, bootstrap );
+        try
+        {
+            @SuppressWarnings("unchecked")
+            T proxy = (T) publicLookup().findConstructor( proxyClass, methodType( void.class ) ).invoke();
+            return proxy;
+        }
+        catch ( Throwable throwable )
+        {
+            throw ReflectionUtils.unchecked( throwable );
+        }
+    }
+
+    public static <F> F createFlatProxyFactory( ClassLoader loader, Bootstrap<?> bootstrap, Class<F> factoryType,
+                                                Class<?>... interfaceTypes )
+    {
+        Method create = factoryMethod( factoryType, bootstrap.stateLayout, interfaceTypes );
+        ProxyState state = ProxyState.flat( bootstrap.stateLayout );
+        List<MethodInfo> methods = new ArrayList<>( generateMethods( interfaceTypes ) );
+        methods.add( MethodInfo.constructor( state ) );
+        Collection<Class<?>> types = setOf( factoryType, interfaceTypes );
+        addAll( types, bootstrap.stateLayout );
+        String name = proxyClassName( loader, types );
+        byte[] byteCode = generateProxyClass( name.replace( '.', '/' ), state, methods, interfaceTypes );
+        verify( loader, byteCode );
+        Class<?> proxyClass = defineClass( loader, name, byteCode );
+        setBootstrap( proxyClass, bootstrap );
+
+        byteCode = generateFactoryClass( name.replace( '.', '/' ) + "$Factory", name.replace( '.', '/' ), factoryType,
+                                         create, bootstrap.stateLayout );
+        verify( loader, byteCode );
+        Class<?> factoryClass = defineClass( loader, name + "$Factory", byteCode );
+        try
+        {
+            return factoryType.cast( publicLookup().findConstructor( factoryClass, methodType( void.class ) )
+                                                   .invoke() );
+        }
+        catch ( Throwable throwable )
+        {
+            throw ReflectionUtils.unchecked( throwable );
+        }
+    }
+
+    private static Method factoryMethod( Class<?> factoryType, Class<?>[] stateLayout, Class<?>... interfaceTypes )
+    {
+        Method create = null;
+        for ( Method method : factoryType.isInterface() ? factoryType.getMethods() : new Method[0] )
+        {
+            if ( Modifier.isAbstract( method.getModifiers() ) )
+            {
+                if ( create != null )
+                {
+                    create = null;
+                    break;
+                }
+                create = method;
+            }
+        }
+        if ( create == null )
+        {
+            throw new IllegalArgumentException(
+                    "Factory type must be an interface with a single abstract method: " + factoryType.getName() );
+        }
+        if ( !Arrays.equals( create.getParameterTypes(), stateLayout ) )
+        {
+            throw new IllegalArgumentException( "Factory method " + create + " does not take the state layout "
+                                                + Arrays.toString( stateLayout ) );
+        }
+        for ( Class<?> type : setOf( Object.class, interfaceTypes ) )
+        {
+            if ( create.getReturnType().isAssignableFrom( type ) )
+            {
+                return create;
+            }
+        }
+        throw new IllegalArgumentException( "Factory method " + create + " does not return a proxied type." );
+    }
+
+    @SafeVarargs
+    public static <S, T> ProxyTemplate<S, T> createProxyTemplate( ClassLoader loader, Class<S> stateType,
+                                                                  Class<? extends T>... interfaceTypes )
+    {
+        if ( stateType.isPrimitive() )
+        {
+            throw new IllegalArgumentException( "Proxy templates require a reference state type: " + stateType );
+        }
+        ProxyState state = ProxyState.linked( stateType );
+        List<MethodInfo> methods = new ArrayList<>();
+        for ( MethodInfo method : generateMethods( interfaceTypes ) )
+        {
+            methods.add( method.linkedThrough( methods.size() ) );
+        }
+        String[] names = new String[methods.size()];
+        MethodType[] signatures = new MethodType[methods.size()];
+        for ( int i = 0; i < names.length; i++ )
+        {
+            names[i] = methods.get( i ).name();
+            signatures[i] = methods.get( i ).signature( stateType );
+        }
+        methods.add( MethodInfo.constructor( state ) );
+        String name = uniqueClassName( loader, proxyPackageName( setOf( stateType, interfaceTypes ) ) + "."
+                                               + IndyProxy.class.getSimpleName() + "$Template" );
+        byte[] byteCode = generateProxyClass( name.replace( '.', '/' ), state, methods, interfaceTypes );
         verify( loader, byteCode );
+        Class<?> templateClass = defineClass( loader, name, byteCode );
+        return new ProxyTemplate<>( stateType, templateClass, proxyLookup( templateClass ), names, signatures );
+    }
+
+    static <S, T> IndyProxy<S, T> linked( Class<?> templateClass, Bootstrap<?> bootstrap, MethodHandle[] linkage )
+    {
+        try
+        {
+            MethodHandle constructor = publicLookup().findConstructor(
+                    templateClass, methodType( void.class, Object.class, MethodHandle[].class ) );
+            return new IndyProxy<>( templateClass, bootstrap, insertArguments( constructor, 1, (Object) linkage ) );
+        }
+        catch ( NoSuchMethodException | IllegalAccessException e )
+        {
+            throw new LinkageError( "Failed to get constructor.", e );
+        }
+    }
+
+    private static MethodHandles.Lookup proxyLookup( Class<?> proxyClass )
+    {
+        try
+        {
+            Method proxyLookup = proxyClass.getDeclaredMethod( "proxyLookup" );
+            proxyLookup.setAccessible( true );
+            return (MethodHandles.Lookup) proxyLookup.invoke( null );
+        }
+        catch ( ReflectiveOperationException e )
+        {
+            throw new LinkageError( "Could not get lookup of proxy class.", e );
+        }
+    }
+
+    private static <S, T> IndyProxy<S, T> define( ClassLoader loader, String name, byte[] byteCode, Bootstrap<?> bootstrap )
+    {
         Class<?> proxyClass = defineClass( loader, name, byteCode );
         setBootstrap( proxyClass, bootstrap );
-        return new IndyProxy<>( constructorOf( proxyClass ) );
+        return new IndyProxy<>( proxyClass, bootstrap, constructorOf( proxyClass ) );
     }
 
     @SuppressWarnings({"ConstantConditions", "AssertWithSideEffects", "UnusedAssignment"})
@@ -61,15 +310,16 @@ public class IndyProxy<S, T>
         }
     }
 
-    @SafeVarargs
-    private static <T> Collection<T> setOf( T first, T... more )
+    private static Collection<Class<?>> setOf( Class<?> first, Class<?>... more )
     {
-        Collection<T> result = new ArrayList<>();
+        Collection<Class<?>> result = new ArrayList<>();
         result.add( first );
         addAll( result, more );
         return result;
     }
 
+    private final Class<?> proxyClass;
+    private final Bootstrap<?> bootstrap;
     private final MethodHandle constructor;
 
     @SuppressWarnings("unchecked")
@@ -85,8 +335,39 @@ public class IndyProxy<S, T>
         }
     }
 
-    private IndyProxy( MethodHandle constructor )
+    public <B> B bulkInvoker( Class<B> bulkType )
+    {
+        return parallelBulkInvoker( bulkType, Integer.MAX_VALUE );
+    }
+
+    public <B> B parallelBulkInvoker( Class<B> bulkType, int threshold )
+    {
+        if ( threshold <= 0 )
+        {
+            throw new IllegalArgumentException( "Parallel threshold must be positive: " + threshold );
+        }
+        BulkMethod bulk = BulkMethod.bulkMethod( bulkType, proxyClass, bootstrap.stateType );
+        ClassLoader loader = proxyClass.getClassLoader();
+        String name = uniqueClassName( loader, proxyClass.getName() + "$Bulk" );
+        byte[] byteCode = bulk.generateClass( name.replace( '.', '/' ), Type.getInternalName( proxyClass ) );
+        verify( loader, byteCode );
+        Class<?> bulkClass = defineClass( loader, name, byteCode );
+        setBootstrap( bulkClass, bootstrap );
+        try
+        {
+            return bulkType.cast( publicLookup().findConstructor( bulkClass, methodType( void.class, int.class ) )
+                                                .invoke( threshold ) );
+        }
+        catch ( Throwable throwable )
+        {
+            throw ReflectionUtils.unchecked( throwable );
+        }
+    }
+
+    private IndyProxy( Class<?> proxyClass, Bootstrap<?> bootstrap, MethodHandle constructor )
     {
+        this.proxyClass = proxyClass;
+        this.bootstrap = bootstrap;
         this.constructor = constructor;
     }
 
@@ -124,12 +405,16 @@ public class IndyProxy<S, T>
         return methods.values();
     }
 
-    private static String proxyClassName( ClassLoader loader, Collection<Class<?>> types )
+    static String proxyClassName( ClassLoader loader, Collection<Class<?>> types )
+    {
+        return uniqueClassName( loader, proxyPackageName( types ) + "." + IndyProxy.class.getSimpleName() );
+    }
+
+    private static String uniqueClassName( ClassLoader loader, String prefix )
     {
-        String packageName = proxyPackageName( types );
         for ( int i = 0; ; i++ )
         {
-            String className = packageName + "." + IndyProxy.class.getSimpleName() + "$" + i;
+            String className = prefix + "$" + i;
             try
             {
                 loader.loadClass( className );
@@ -146,6 +431,10 @@ public class IndyProxy<S, T>
         Set<String> packages = new HashSet<>(), hidden = new HashSet<>();
         for ( Class<?> type : types )
         {
+            if ( type.isPrimitive() || type.isArray() )
+            {
+                continue;
+            }
             packages.add( type.getPackage().getName() );
             if ( !Modifier.isPublic( type.getModifiers() ) )
             {
@@ -186,7 +475,8 @@ public class IndyProxy<S, T>
         return null;
     }
 
-    private static byte[] generateProxyClass( String name, Class<?> state, List<MethodInfo> methods, Class<?>... types )
+    private static byte[] generateProxyClass( String name, ProxyState state, List<MethodInfo> methods,
+                                              Class<?>... types )
     {
         ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_FRAMES );
 
@@ -199,9 +489,11 @@ public class IndyProxy<S, T>
 
         cw.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "bootstrap", Type.getDescriptor( Bootstrap.class ),
                        null, null );
-        cw.visitField( Opcodes.ACC_PRIVATE, "state", Type.getDescriptor( state ), null, null );
+        state.generateFields( cw );
+        state.generateMethods( name, cw );
+        generateProxyLookup( cw );
 
-        MethodInfo.BootstrapMethod bsm = MethodInfo.bootstrapMethod( name, "bootstrap" );
+        MethodInfo.BootstrapMethod bsm = state.bootstrapMethod( name );
         methods.add( bsm );
         for ( MethodInfo method : methods )
         {
@@ -213,6 +505,57 @@ public class IndyProxy<S, T>
         return cw.toByteArray();
     }
 
+    private static void generateProxyLookup( ClassWriter cw )
+    {
+        // static Lookup proxyLookup() - used for linking the call sites of bulk invokers in the same package
+        MethodVisitor method = cw.visitMethod( Opcodes.ACC_STATIC, "proxyLookup", Type.getMethodDescriptor(
+                Type.getType( MethodHandles.Lookup.class ) ), null, null );
+        method.visitCode();
+        method.visitMethodInsn( Opcodes.INVOKESTATIC, Type.getInternalName( MethodHandles.class ), "lookup",
+                                Type.getMethodDescriptor( Type.getType( MethodHandles.Lookup.class ) ) );
+        method.visitInsn( Opcodes.ARETURN );
+        method.visitMaxs( 1, 0 );
+        method.visitEnd();
+    }
+
+    private static byte[] generateFactoryClass( String name, String proxyName, Class<?> factoryType, Method create,
+                                                Class<?>[] layout )
+    {
+        ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_FRAMES );
+        cw.visit( Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, name, null,
+                  Type.getInternalName( Object.class ), new String[]{Type.getInternalName( factoryType )} );
+
+        MethodVisitor method = cw.visitMethod( Opcodes.ACC_PUBLIC, "<init>", "()V", null, null );
+        method.visitCode();
+        method.visitVarInsn( Opcodes.ALOAD, 0 );
+        method.visitMethodInsn( Opcodes.INVOKESPECIAL, Type.getInternalName( Object.class ), "<init>", "()V" );
+        method.visitInsn( Opcodes.RETURN );
+        method.visitMaxs( 1, 1 );
+        method.visitEnd();
+
+        method = cw.visitMethod( Opcodes.ACC_PUBLIC, create.getName(), Type.getMethodDescriptor( create ), null,
+                                 null );
+        method.visitCode();
+        method.visitTypeInsn( Opcodes.NEW, proxyName );
+        method.visitInsn( Opcodes.DUP );
+        Type[] fields = new Type[layout.length];
+        for ( int i = 0, local = 1; i < layout.length; i++ )
+        {
+            fields[i] = Type.getType( layout[i] );
+            method.visitVarInsn( fields[i].getOpcode( Opcodes.ILOAD ), local );
+            local += fields[i].getSize();
+        }
+        method.visitMethodInsn( Opcodes.INVOKESPECIAL, proxyName, "<init>",
+                                Type.getMethodDescriptor( Type.VOID_TYPE, fields ) );
+        method.visitInsn( Opcodes.ARETURN );
+        method.visitMaxs( 0, 0 );
+        method.visitEnd();
+
+        cw.visitEnd();
+
+        return cw.toByteArray();
+    }
+
     private static MethodHandle DEFINE_CLASS = methodHandle( ClassLoader.class, "defineClass",
                                                              String.class, byte[].class, int.class, int.class );
 
@@ -229,16 +572,21 @@ public class IndyProxy<S, T>
     }
 
     private static void setBootstrap( Class<?> proxyClass, Bootstrap bootstrap )
+    {
+        setStatic( proxyClass, "bootstrap", bootstrap );
+    }
+
+    private static void setStatic( Class<?> proxyClass, String name, Object value )
     {
         try
         {
-            Field field = proxyClass.getDeclaredField( "bootstrap" );
+            Field field = proxyClass.getDeclaredField( name );
             field.setAccessible( true );
-            field.set( null, bootstrap );
+            field.set( null, value );
         }
         catch ( NoSuchFieldException | IllegalAccessException e )
         {
-            throw new LinkageError( "Could not set bootstrap.", e );
+            throw new LinkageError( "Could not set " + name + ".", e );
         }
     }
 
@@ -0,0 +1,8 @@
+package org.thobe.indy.proxy;
+
+public enum LockMode
+{
+    MONITOR,
+    READ_WRITE,
+    STAMPED
+}
@@ -1,14 +1,18 @@
 package org.thobe.indy.proxy;
 
 import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
 
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Handle;
@@ -19,39 +23,11 @@ import org.objectweb.asm.Type;
 
 class MethodInfo
 {
-    public static final MethodInfo CONSTRUCTOR = new MethodInfo( void.class, "<init>", Object.class )
-    {
-        @Override
-        void generateCode( String className, Class<?> stateType, MethodVisitor method, Handle bsm )
-        {
-            method.visitFieldInsn( Opcodes.GETSTATIC, className, "bootstrap",
-                                   Type.getDescriptor( Bootstrap.class ) );
-            Label ok = new Label();
-            method.visitJumpInsn( Opcodes.IFNONNULL, ok );
-            method.visitTypeInsn( Opcodes.NEW, Type.getInternalName( IllegalStateException.class ) );
-            method.visitInsn( Opcodes.DUP );
-            method.visitLdcInsn( "Bootstrap not assigned." );
-            method.visitMethodInsn( Opcodes.INVOKESPECIAL, Type.getInternalName( IllegalStateException.class ),
-                                    "<init>",
-                                    Type.getMethodDescriptor( Type.VOID_TYPE, Type.getType( String.class ) ) );
-            method.visitInsn( Opcodes.ATHROW );
-
-            method.visitLabel( ok );
-            method.visitVarInsn( Opcodes.ALOAD, 0 );
-            method.visitMethodInsn( Opcodes.INVOKESPECIAL, Type.getInternalName( Object.class ), "<init>", "()V" );
-            method.visitVarInsn( Opcodes.ALOAD, 0 );
-            method.visitVarInsn( Opcodes.ALOAD, 1 );
-            method.visitTypeInsn( Opcodes.CHECKCAST, Type.getInternalName( stateType ) );
-            method.visitFieldInsn( Opcodes.PUTFIELD, className, "state", Type.getDescriptor( stateType ) );
-            method.visitInsn( Opcodes.RETURN );
-
-            method.visitMaxs( 3, 2 );
-        }
-    };
     private Class<?> returnType;
     private final String name;
     private final Class<?>[] parameterTypes;
     private final Set<Class> exceptions = new HashSet<>(), alternativeReturns = new HashSet<>();
+    private boolean readOnly = true, aggregate;
 
     private MethodInfo( Class<?> returnType, String name, Class<?>... parameterTypes )
     {
@@ -65,6 +41,17 @@ class MethodInfo
     {
         this( method.getReturnType(), method.getName(), method.getParameterTypes() );
         Collections.addAll( exceptions, method.getExceptionTypes() );
+        this.readOnly = readOnly( method );
+        this.aggregate = method.isAnnotationPresent( Aggregate.class );
+    }
+
+    private MethodInfo( MethodInfo method )
+    {
+        this( method.returnType, method.name, method.parameterTypes );
+        this.exceptions.addAll( method.exceptions );
+        this.alternativeReturns.addAll( method.alternativeReturns );
+        this.readOnly = method.readOnly;
+        this.aggregate = method.aggregate;
     }
 
     static void proxyMethod( Map<String, MethodInfo> methods, Method method )
@@ -96,8 +83,53 @@ class MethodInfo
         Set<Class<?>> ex = new HashSet<>();
         Collections.addAll( ex, method.getExceptionTypes() );
         exceptions.retainAll( ex );
+        readOnly &= readOnly( method );
+        aggregate |= method.isAnnotationPresent( Aggregate.class );
     }
 
+    static boolean readOnly( Method method )
+    {
+        ReadOnly annotation = method.getAnnotation( ReadOnly.class );
+        if ( annotation != null )
+        {
+            return annotation.value();
+        }
+        String name = method.getName();
+        if ( method.getDeclaringClass() == Object.class || name.equals( "size" ) )
+        {
+            return true;
+        }
+        if ( method.getReturnType() == void.class )
+        {
+            return false;
+        }
+        for ( String prefix : READ_MODIFY_WRITE_PREFIXES )
+        {
+            if ( hasPrefix( name, prefix ) )
+            {
+                return false;
+            }
+        }
+        for ( String prefix : READ_ONLY_PREFIXES )
+        {
+            if ( hasPrefix( name, prefix ) )
+            {
+                return true;
+            }
+        }
+        return false; // anything not clearly named as a read is guarded as a write
+    }
+
+    private static boolean hasPrefix( String name, String prefix )
+    {
+        // "isEmpty" or "get", but not "issue" or "getaway"
+        return name.startsWith( prefix )
+               && (name.length() == prefix.length() || Character.isUpperCase( name.charAt( prefix.length() ) ));
+    }
+
+    private static final String[] READ_ONLY_PREFIXES = {"get", "is", "has", "contains"},
+            READ_MODIFY_WRITE_PREFIXES = {"getAnd", "getOr"};
+
     private static String signature( Method method )
     {
         StringBuilder sig = new StringBuilder( method.getName() ).append( '(' );
@@ -108,21 +140,149 @@ class MethodInfo
         return sig.append( ")" ).toString();
     }
 
-    static MethodInfo constructor()
+    MethodInfo forwardingTo( Bootstrap<?> bootstrap )
+    {
+        Class<?>[] signature = new Class<?>[parameterTypes.length + 1];
+        signature[0] = bootstrap.stateType;
+        System.arraycopy( parameterTypes, 0, signature, 1, parameterTypes.length );
+        if ( isObjectMethod() || bootstrap.overrides( name, MethodType.methodType( returnType, signature ) ) )
+        {
+            return this;
+        }
+        Method target;
+        try
+        {
+            target = bootstrap.stateType.getMethod( name, parameterTypes );
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return this;
+        }
+        if ( Modifier.isStatic( target.getModifiers() ) )
+        {
+            return this;
+        }
+        Class<?> targetReturn = target.getReturnType();
+        if ( targetReturn != returnType && (targetReturn.isPrimitive() || returnType.isPrimitive()) )
+        {
+            return this;
+        }
+        return new ForwardingMethod( this, target );
+    }
+
+    MethodInfo guardedBy( LockMode mode )
     {
-        return CONSTRUCTOR;
+        return new GuardedMethod( this, mode );
+    }
+
+    MethodInfo striped()
+    {
+        return aggregate ? new AggregateMethod( this ) : this;
+    }
+
+    MethodInfo linkedThrough( int index )
+    {
+        return new LinkedMethod( this, index );
+    }
+
+    String name()
+    {
+        return name;
+    }
+
+    MethodType signature( Class<?> stateType )
+    {
+        return MethodType.methodType( returnType, parameterTypes ).insertParameterTypes( 0, stateType );
+    }
+
+    boolean isObjectMethod()
+    {
+        try
+        {
+            Object.class.getMethod( name, parameterTypes );
+            return true;
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return false;
+        }
+    }
+
+    static MethodInfo constructor( ProxyState state )
+    {
+        return new MethodInfo( void.class, "<init>", state.constructorParameters() )
+        {
+            @Override
+            void generateCode( String className, ProxyState state, MethodVisitor method, Handle bsm )
+            {
+                if ( state.bootstrapped() )
+                {
+                    method.visitFieldInsn( Opcodes.GETSTATIC, className, "bootstrap",
+                                           Type.getDescriptor( Bootstrap.class ) );
+                    Label ok = new Label();
+                    method.visitJumpInsn( Opcodes.IFNONNULL, ok );
+                    method.visitTypeInsn( Opcodes.NEW, Type.getInternalName( IllegalStateException.class ) );
+                    method.visitInsn( Opcodes.DUP );
+                    method.visitLdcInsn( "Bootstrap not assigned." );
+                    method.visitMethodInsn( Opcodes.INVOKESPECIAL,
+                                            Type.getInternalName( IllegalStateException.class ), "<init>",
+                                            Type.getMethodDescriptor( Type.VOID_TYPE,
+                                                                      Type.getType( String.class ) ) );
+                    method.visitInsn( Opcodes.ATHROW );
+                    method.visitLabel( ok );
+                }
+
+                method.visitVarInsn( Opcodes.ALOAD, 0 );
+                method.visitMethodInsn( Opcodes.INVOKESPECIAL, Type.getInternalName( Object.class ), "<init>",
+                                        "()V" );
+                state.initialize( className, method );
+                method.visitInsn( Opcodes.RETURN );
+
+                method.visitMaxs( 3, 2 );
+            }
+        };
     }
 
     static BootstrapMethod bootstrapMethod( String className, String methodName )
     {
-        return new BootstrapMethod( className, methodName );
+        return new BootstrapMethod( className, methodName, className );
+    }
+
+    static BootstrapMethod bootstrapMethod( String className, String methodName, String proxyClassName )
+    {
+        return new BootstrapMethod( className, methodName, proxyClassName );
+    }
+
+    static BootstrapMethod constantBootstrapMethod( String className, final ProxyState state )
+    {
+        return new BootstrapMethod( className, "bootstrap", className )
+        {
+            @Override
+            void generateCode( String className, ProxyState unused, MethodVisitor method, Handle bsm )
+            {
+                method.visitFieldInsn( Opcodes.GETSTATIC, className, "bootstrap",
+                                       Type.getDescriptor( Bootstrap.class ) );
+                method.visitFieldInsn( Opcodes.GETSTATIC, className, "state", state.descriptor() );
+                method.visitLdcInsn( Type.getObjectType( className ) );
+                method.visitVarInsn( Opcodes.ALOAD, 0 );
+                method.visitVarInsn( Opcodes.ALOAD, 1 );
+                method.visitVarInsn( Opcodes.ALOAD, 2 );
+                method.visitMethodInsn(
+                        Opcodes.INVOKEVIRTUAL, Type.getInternalName( Bootstrap.class ), "bindConstant",
+                        Type.getMethodDescriptor( Type.getType( CallSite.class ), types(
+                                Object.class, Class.class, MethodHandles.Lookup.class, String.class,
+                                MethodType.class ) ) );
+                method.visitInsn( Opcodes.ARETURN );
+                method.visitMaxs( 6, 3 );
+            }
+        };
     }
 
-    void generateMethod( String className, Class<?> stateType, ClassVisitor classVisitor, BootstrapMethod bsm )
+    void generateMethod( String className, ProxyState state, ClassVisitor classVisitor, BootstrapMethod bsm )
     {
         MethodVisitor method = classVisitor.visitMethod( access(), name, desc(), null, exceptions() );
         method.visitCode();
-        generateCode( className, stateType, method, bsm.handle );
+        generateCode( className, state, method, bsm.handle );
         method.visitEnd();
         for ( Class returnType : alternativeReturns )
         {
@@ -139,96 +299,46 @@ class MethodInfo
         }
     }
 
-    void generateCode( String className, Class<?> stateType, MethodVisitor method, Handle bsm )
+    void generateCode( String className, ProxyState state, MethodVisitor method, Handle bsm )
     {
-        method.visitVarInsn( Opcodes.ALOAD, 0 );
-        method.visitFieldInsn( Opcodes.GETFIELD, className, "state", Type.getDescriptor( stateType ) );
-        Type[] arguments = new Type[parameterTypes.length + 1];
-        arguments[0] = Type.getType( stateType );
-        loadAllParameters( method, arguments );
-        method.visitInvokeDynamicInsn( name, Type.getMethodDescriptor( Type.getType( returnType ), arguments ), bsm );
+        generateInvocation( className, state, method, bsm );
         generateReturn( method );
         method.visitMaxs( parameterTypes.length + 1, parameterTypes.length + 1 );
     }
 
+    void generateInvocation( String className, ProxyState state, MethodVisitor method, Handle bsm )
+    {
+        state.load( className, method );
+        Class<?>[] stateTypes = state.types();
+        Type[] arguments = new Type[stateTypes.length + parameterTypes.length];
+        System.arraycopy( types( stateTypes ), 0, arguments, 0, stateTypes.length );
+        System.arraycopy( types( parameterTypes ), 0, arguments, stateTypes.length, parameterTypes.length );
+        loadAllParameters( method );
+        method.visitInvokeDynamicInsn( name, Type.getMethodDescriptor( Type.getType( returnType ), arguments ), bsm );
+    }
+
     private void generateBridge( String className, MethodVisitor method )
     {
         method.visitVarInsn( Opcodes.ALOAD, 0 );
-        loadAllParameters( method, null );
+        loadAllParameters( method );
         method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, className, name, desc() );
         generateReturn( method );
         method.visitMaxs( parameterTypes.length + 1, parameterTypes.length + 1 );
     }
 
-    private void loadAllParameters( MethodVisitor method, Type[] arguments )
+    private void loadAllParameters( MethodVisitor method )
     {
-        for ( int i = 0; i < parameterTypes.length; i++ )
+        for ( int i = 0, local = 1; i < parameterTypes.length; i++ )
         {
-            if ( arguments != null )
-            {
-                arguments[i + 1] = Type.getType( parameterTypes[i] );
-            }
-            if ( parameterTypes[i].isPrimitive() )
-            {
-                switch ( parameterTypes[i].getName() )
-                {
-                case "boolean":
-                case "byte":
-                case "short":
-                case "char":
-                case "int":
-                    method.visitVarInsn( Opcodes.ILOAD, i + 1 );
-                    break;
-                case "long":
-                    method.visitVarInsn( Opcodes.LLOAD, i + 1 );
-                    break;
-                case "float":
-                    method.visitVarInsn( Opcodes.FLOAD, i + 1 );
-                    break;
-                case "double":
-                    method.visitVarInsn( Opcodes.DLOAD, i + 1 );
-                    break;
-                default:
-                    throw new IllegalStateException( "Unsupported primitive type:" + parameterTypes[i] );
-                }
-            }
-            else
-            {
-                method.visitVarInsn( Opcodes.ALOAD, i + 1 );
-            }
+            Type type = Type.getType( parameterTypes[i] );
+            method.visitVarInsn( type.getOpcode( Opcodes.ILOAD ), local );
+            local += type.getSize();
         }
     }
 
     private void generateReturn( MethodVisitor method )
     {
-        if ( returnType.isPrimitive() )
-        {
-            switch ( returnType.getName() )
-            {
-            case "boolean":
-            case "byte":
-            case "short":
-            case "char":
-            case "int":
-                method.visitInsn( Opcodes.IRETURN );
-                break;
-            case "long":
-                method.visitInsn( Opcodes.LRETURN );
-                break;
-            case "float":
-                method.visitInsn( Opcodes.FRETURN );
-                break;
-            case "double":
-                method.visitInsn( Opcodes.DRETURN );
-                break;
-            default:
-                throw new IllegalStateException( "Unsupported primitive type:" + returnType );
-            }
-        }
-        else
-        {
-            method.visitInsn( Opcodes.ARETURN );
-        }
+        method.visitInsn( Type.getType( returnType ).getOpcode( Opcodes.IRETURN ) );
     }
 
     int access()
@@ -262,14 +372,328 @@ class MethodInfo
         return exceptions;
     }
 
+    private static class LinkedMethod extends MethodInfo
+    {
+        private final int index;
+
+        private LinkedMethod( MethodInfo method, int index )
+        {
+            super( method );
+            this.index = index;
+        }
+
+        @Override
+        void generateInvocation( String className, ProxyState state, MethodVisitor method, Handle bsm )
+        {
+            // linkage[index].invokeExact( state, parameters... )
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, "linkage", Type.getDescriptor( MethodHandle[].class ) );
+            method.visitLdcInsn( index );
+            method.visitInsn( Opcodes.AALOAD );
+            state.load( className, method );
+            super.loadAllParameters( method );
+            method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, Type.getInternalName( MethodHandle.class ), "invokeExact",
+                                    signature( state.type ).toMethodDescriptorString() );
+        }
+    }
+
+    private static class ForwardingMethod extends MethodInfo
+    {
+        private final Method target;
+
+        private ForwardingMethod( MethodInfo method, Method target )
+        {
+            super( method );
+            this.target = target;
+        }
+
+        @Override
+        void generateInvocation( String className, ProxyState state, MethodVisitor method, Handle bsm )
+        {
+            state.load( className, method );
+            super.loadAllParameters( method );
+            method.visitMethodInsn( state.type.isInterface() ? Opcodes.INVOKEINTERFACE : Opcodes.INVOKEVIRTUAL,
+                                    Type.getInternalName( state.type ), target.getName(),
+                                    Type.getMethodDescriptor( target ) );
+            if ( target.getReturnType() != super.returnType )
+            {
+                method.visitTypeInsn( Opcodes.CHECKCAST, Type.getInternalName( super.returnType ) );
+            }
+        }
+    }
+
+    private static class GuardedMethod extends MethodInfo
+    {
+        private static final String LOCK = Type.getInternalName( Lock.class ),
+                STAMPED_LOCK = Type.getInternalName( StampedLock.class );
+        private final MethodInfo guarded;
+        private final LockMode mode;
+
+        private GuardedMethod( MethodInfo guarded, LockMode mode )
+        {
+            super( guarded );
+            this.guarded = guarded;
+            this.mode = mode;
+        }
+
+        @Override
+        int access()
+        {
+            return mode == LockMode.MONITOR ? guarded.access() | Opcodes.ACC_SYNCHRONIZED : guarded.access();
+        }
+
+        @Override
+        void generateCode( String className, ProxyState state, MethodVisitor method, Handle bsm )
+        {
+            switch ( mode )
+            {
+            case MONITOR:
+                guarded.generateCode( className, state, method, bsm );
+                return;
+            case READ_WRITE:
+                generateLocked( className, state, method, bsm, super.readOnly ? "readLock" : "writeLock" );
+                break;
+            case STAMPED:
+                if ( super.readOnly )
+                {
+                    generateOptimisticRead( className, state, method, bsm );
+                }
+                else
+                {
+                    generateStamped( className, state, method, bsm, "writeLock", "unlockWrite" );
+                }
+                break;
+            default:
+                throw new IllegalStateException( "Unsupported lock mode: " + mode );
+            }
+            method.visitMaxs( 0, 0 );
+        }
+
+        private void generateLocked( String className, ProxyState state, MethodVisitor method, Handle bsm,
+                                     String lock )
+        {
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, lock, Type.getDescriptor( Lock.class ) );
+            method.visitMethodInsn( Opcodes.INVOKEINTERFACE, LOCK, "lock", "()V" );
+            Label start = new Label(), end = new Label(), handler = new Label();
+            method.visitTryCatchBlock( start, end, handler, null );
+            method.visitLabel( start );
+            guarded.generateInvocation( className, state, method, bsm );
+            storeResult( method );
+            method.visitLabel( end );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, lock, Type.getDescriptor( Lock.class ) );
+            method.visitMethodInsn( Opcodes.INVOKEINTERFACE, LOCK, "unlock", "()V" );
+            returnResult( method );
+
+            method.visitLabel( handler );
+            method.visitVarInsn( Opcodes.ASTORE, throwableLocal() );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, lock, Type.getDescriptor( Lock.class ) );
+            method.visitMethodInsn( Opcodes.INVOKEINTERFACE, LOCK, "unlock", "()V" );
+            method.visitVarInsn( Opcodes.ALOAD, throwableLocal() );
+            method.visitInsn( Opcodes.ATHROW );
+        }
+
+        private void generateStamped( String className, ProxyState state, MethodVisitor method, Handle bsm,
+                                      String lock, String unlock )
+        {
+            loadStampedLock( className, method );
+            method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, STAMPED_LOCK, lock, "()J" );
+            method.visitVarInsn( Opcodes.LSTORE, stampLocal() );
+            Label start = new Label(), end = new Label(), handler = new Label();
+            method.visitTryCatchBlock( start, end, handler, null );
+            method.visitLabel( start );
+            guarded.generateInvocation( className, state, method, bsm );
+            storeResult( method );
+            method.visitLabel( end );
+            loadStampedLock( className, method );
+            method.visitVarInsn( Opcodes.LLOAD, stampLocal() );
+            method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, STAMPED_LOCK, unlock, "(J)V" );
+            returnResult( method );
+
+            method.visitLabel( handler );
+            method.visitVarInsn( Opcodes.ASTORE, throwableLocal() );
+            loadStampedLock( className, method );
+            method.visitVarInsn( Opcodes.LLOAD, stampLocal() );
+            method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, STAMPED_LOCK, unlock, "(J)V" );
+            method.visitVarInsn( Opcodes.ALOAD, throwableLocal() );
+            method.visitInsn( Opcodes.ATHROW );
+        }
+
+        private void generateOptimisticRead( String className, ProxyState state, MethodVisitor method, Handle bsm )
+        {
+            // read without locking, and only retry under the read lock if a write interfered
+            Label locked = new Label(), start = new Label(), end = new Label(), handler = new Label();
+            loadStampedLock( className, method );
+            method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, STAMPED_LOCK, "tryOptimisticRead", "()J" );
+            method.visitInsn( Opcodes.DUP2 );
+            method.visitVarInsn( Opcodes.LSTORE, stampLocal() );
+            method.visitInsn( Opcodes.LCONST_0 );
+            method.visitInsn( Opcodes.LCMP );
+            method.visitJumpInsn( Opcodes.IFEQ, locked );
+            method.visitTryCatchBlock( start, end, handler, null );
+            method.visitLabel( start );
+            guarded.generateInvocation( className, state, method, bsm );
+            storeResult( method );
+            method.visitLabel( end );
+            validateStamp( className, method, locked );
+            returnResult( method );
+
+            method.visitLabel( handler );
+            method.visitVarInsn( Opcodes.ASTORE, throwableLocal() );
+            validateStamp( className, method, locked );
+            method.visitVarInsn( Opcodes.ALOAD, throwableLocal() );
+            method.visitInsn( Opcodes.ATHROW );
+
+            method.visitLabel( locked );
+            generateStamped( className, state, method, bsm, "readLock", "unlockRead" );
+        }
+
+        private void validateStamp( String className, MethodVisitor method, Label invalid )
+        {
+            loadStampedLock( className, method );
+            method.visitVarInsn( Opcodes.LLOAD, stampLocal() );
+            method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, STAMPED_LOCK, "validate", "(J)Z" );
+            method.visitJumpInsn( Opcodes.IFEQ, invalid );
+        }
+
+        private static void loadStampedLock( String className, MethodVisitor method )
+        {
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, "lock", Type.getDescriptor( StampedLock.class ) );
+        }
+
+        private void storeResult( MethodVisitor method )
+        {
+            if ( super.returnType != void.class )
+            {
+                method.visitVarInsn( Type.getType( super.returnType ).getOpcode( Opcodes.ISTORE ), resultLocal() );
+            }
+        }
+
+        private void returnResult( MethodVisitor method )
+        {
+            if ( super.returnType != void.class )
+            {
+                method.visitVarInsn( Type.getType( super.returnType ).getOpcode( Opcodes.ILOAD ), resultLocal() );
+            }
+            super.generateReturn( method );
+        }
+
+        private int resultLocal()
+        {
+            int local = 1;
+            for ( Class<?> parameter : super.parameterTypes )
+            {
+                local += Type.getType( parameter ).getSize();
+            }
+            return local;
+        }
+
+        private int stampLocal()
+        {
+            return resultLocal() + Type.getType( super.returnType ).getSize();
+        }
+
+        private int throwableLocal()
+        {
+            return stampLocal() + 2;
+        }
+    }
+
+    private static class AggregateMethod extends MethodInfo
+    {
+        private AggregateMethod( MethodInfo method )
+        {
+            super( method );
+        }
+
+        @Override
+        void generateCode( String className, ProxyState state, MethodVisitor method, Handle bsm )
+        {
+            Type stateType = Type.getType( state.type ), result = Type.getType( super.returnType );
+            int stripes = locals(), accumulator = stripes + 1, i = accumulator + result.getSize();
+            Handle combine = bootstrapMethod( className, "combine" ).handle;
+            String invocation = Type.getMethodDescriptor( result, prepend( stateType, types( super.parameterTypes ) ) );
+            String combination = Type.getMethodDescriptor( result, result, result );
+
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, "stripes", "[" + stateType.getDescriptor() );
+            method.visitVarInsn( Opcodes.ASTORE, stripes );
+            method.visitVarInsn( Opcodes.ALOAD, stripes );
+            method.visitInsn( Opcodes.ICONST_0 );
+            method.visitInsn( Opcodes.AALOAD );
+            super.loadAllParameters( method );
+            method.visitInvokeDynamicInsn( super.name, invocation, bsm );
+            if ( super.returnType != void.class )
+            {
+                method.visitVarInsn( result.getOpcode( Opcodes.ISTORE ), accumulator );
+            }
+
+            Label loop = new Label(), done = new Label();
+            method.visitInsn( Opcodes.ICONST_1 );
+            method.visitVarInsn( Opcodes.ISTORE, i );
+            method.visitLabel( loop );
+            method.visitVarInsn( Opcodes.ILOAD, i );
+            method.visitVarInsn( Opcodes.ALOAD, stripes );
+            method.visitInsn( Opcodes.ARRAYLENGTH );
+            method.visitJumpInsn( Opcodes.IF_ICMPGE, done );
+            if ( super.returnType != void.class )
+            {
+                method.visitVarInsn( result.getOpcode( Opcodes.ILOAD ), accumulator );
+            }
+            method.visitVarInsn( Opcodes.ALOAD, stripes );
+            method.visitVarInsn( Opcodes.ILOAD, i );
+            method.visitInsn( Opcodes.AALOAD );
+            super.loadAllParameters( method );
+            method.visitInvokeDynamicInsn( super.name, invocation, bsm );
+            if ( super.returnType != void.class )
+            {
+                method.visitInvokeDynamicInsn( super.name, combination, combine );
+                method.visitVarInsn( result.getOpcode( Opcodes.ISTORE ), accumulator );
+            }
+            method.visitIincInsn( i, 1 );
+            method.visitJumpInsn( Opcodes.GOTO, loop );
+
+            method.visitLabel( done );
+            if ( super.returnType != void.class )
+            {
+                method.visitVarInsn( result.getOpcode( Opcodes.ILOAD ), accumulator );
+            }
+            super.generateReturn( method );
+            method.visitMaxs( 0, 0 );
+        }
+
+        private int locals()
+        {
+            int local = 1;
+            for ( Class<?> parameter : super.parameterTypes )
+            {
+                local += Type.getType( parameter ).getSize();
+            }
+            return local;
+        }
+
+        private static Type[] prepend( Type first, Type[] more )
+        {
+            Type[] result = new Type[more.length + 1];
+            result[0] = first;
+            System.arraycopy( more, 0, result, 1, more.length );
+            return result;
+        }
+    }
+
     static class BootstrapMethod extends MethodInfo
     {
-        private final Handle handle;
+        final Handle handle;
+        private final String proxyClassName;
 
-        private BootstrapMethod( String className, String methodName )
+        private BootstrapMethod( String className, String methodName, String proxyClassName )
         {
             super( CallSite.class, methodName, MethodHandles.Lookup.class, String.class, MethodType.class );
             this.handle = new Handle( Opcodes.H_INVOKESTATIC, className, methodName, desc() );
+            this.proxyClassName = proxyClassName;
         }
 
         @Override
@@ -279,15 +703,24 @@ class MethodInfo
         }
 
         @Override
-        void generateCode( String className, Class<?> stateType, MethodVisitor method, Handle bsm )
+        void generateCode( String className, ProxyState state, MethodVisitor method, Handle bsm )
         {
             method.visitFieldInsn( Opcodes.GETSTATIC, className, "bootstrap", Type.getDescriptor( Bootstrap.class ) );
-            method.visitLdcInsn( Type.getObjectType( className ) );
-            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitLdcInsn( Type.getObjectType( proxyClassName ) );
+            if ( proxyClassName.equals( className ) )
+            {
+                method.visitVarInsn( Opcodes.ALOAD, 0 );
+            }
+            else
+            {
+                // linking on behalf of the proxy class, so the bootstrap gets to see the lookup of that class
+                method.visitMethodInsn( Opcodes.INVOKESTATIC, proxyClassName, "proxyLookup",
+                                        Type.getMethodDescriptor( Type.getType( MethodHandles.Lookup.class ) ) );
+            }
             method.visitVarInsn( Opcodes.ALOAD, 1 );
             method.visitVarInsn( Opcodes.ALOAD, 2 );
             method.visitMethodInsn(
-                    Opcodes.INVOKEVIRTUAL, Type.getInternalName( Bootstrap.class ), "bootstrap",
+                    Opcodes.INVOKEVIRTUAL, Type.getInternalName( Bootstrap.class ), super.name,
                     Type.getMethodDescriptor(
                             Type.getType( CallSite.class ),
                             types( Class.class, MethodHandles.Lookup.class, String.class, MethodType.class ) ) );
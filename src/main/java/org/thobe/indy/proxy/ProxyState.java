@@ -0,0 +1,535 @@
+package org.thobe.indy.proxy;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+class ProxyState
+{
+    final Class<?> type;
+
+    private ProxyState( Class<?> type )
+    {
+        this.type = type;
+    }
+
+    static ProxyState eager( Class<?> type )
+    {
+        return new ProxyState( type );
+    }
+
+    static ProxyState lazy( Class<?> type )
+    {
+        return new Lazy( type );
+    }
+
+    static ProxyState flat( Class<?>... layout )
+    {
+        return layout.length == 1 ? new Flat( layout[0], layout ) : new Flat( Object[].class, layout );
+    }
+
+    static ProxyState striped( Class<?> type, int stripes )
+    {
+        return new Striped( type, stripes );
+    }
+
+    static ProxyState guarded( ProxyState state, LockMode mode )
+    {
+        return new Guarded( state, mode );
+    }
+
+    static ProxyState constant( Class<?> type )
+    {
+        return new Constant( type );
+    }
+
+    static ProxyState linked( Class<?> type )
+    {
+        return new Linked( type );
+    }
+
+    Class<?>[] types()
+    {
+        return new Class<?>[]{type};
+    }
+
+    Class<?>[] constructorParameters()
+    {
+        return new Class<?>[]{Object.class};
+    }
+
+    void generateFields( ClassVisitor classVisitor )
+    {
+        classVisitor.visitField( Opcodes.ACC_PRIVATE, "state", descriptor(), null, null );
+    }
+
+    void generateMethods( String className, ClassVisitor classVisitor )
+    {
+    }
+
+    MethodInfo.BootstrapMethod bootstrapMethod( String className )
+    {
+        return MethodInfo.bootstrapMethod( className, "bootstrap" );
+    }
+
+    boolean bootstrapped()
+    {
+        return true;
+    }
+
+    void initialize( String className, MethodVisitor method )
+    {
+        method.visitVarInsn( Opcodes.ALOAD, 0 );
+        method.visitVarInsn( Opcodes.ALOAD, 1 );
+        method.visitTypeInsn( Opcodes.CHECKCAST, Type.getInternalName( type ) );
+        method.visitFieldInsn( Opcodes.PUTFIELD, className, "state", descriptor() );
+    }
+
+    void load( String className, MethodVisitor method )
+    {
+        method.visitVarInsn( Opcodes.ALOAD, 0 );
+        method.visitFieldInsn( Opcodes.GETFIELD, className, "state", descriptor() );
+    }
+
+    final String descriptor()
+    {
+        return Type.getDescriptor( type );
+    }
+
+    private static class Lazy extends ProxyState
+    {
+        private static final String SUPPLIER = Type.getDescriptor( Supplier.class ),
+                OBJECT = Type.getDescriptor( Object.class );
+
+        Lazy( Class<?> type )
+        {
+            super( type );
+        }
+
+        @Override
+        void generateFields( ClassVisitor classVisitor )
+        {
+            // volatile, so that the state is safely published to threads that skip the lock
+            classVisitor.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_VOLATILE, "state", descriptor(), null, null );
+            classVisitor.visitField( Opcodes.ACC_PRIVATE, "supplier", SUPPLIER, null, null );
+            classVisitor.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "lock", OBJECT, null, null );
+        }
+
+        @Override
+        void generateMethods( String className, ClassVisitor classVisitor )
+        {
+            // private S state() - the double checked slow path, also used by the default equals
+            // the lock is private, so code that synchronizes on the proxy cannot interfere with initialization
+            MethodVisitor method = classVisitor.visitMethod( Opcodes.ACC_PRIVATE, "state", "()" + descriptor(), null,
+                                                             null );
+            method.visitCode();
+            Label start = new Label(), end = new Label(), handler = new Label(), done = new Label(),
+                    supplied = new Label();
+            method.visitTryCatchBlock( start, end, handler, null );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, "lock", OBJECT );
+            method.visitInsn( Opcodes.DUP );
+            method.visitVarInsn( Opcodes.ASTORE, 1 );
+            method.visitInsn( Opcodes.MONITORENTER );
+            method.visitLabel( start );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, "state", descriptor() );
+            method.visitVarInsn( Opcodes.ASTORE, 2 );
+            method.visitVarInsn( Opcodes.ALOAD, 2 );
+            method.visitJumpInsn( Opcodes.IFNONNULL, done );
+
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, "supplier", SUPPLIER );
+            method.visitMethodInsn( Opcodes.INVOKEINTERFACE, Type.getInternalName( Supplier.class ), "get",
+                                    Type.getMethodDescriptor( Type.getType( Object.class ) ) );
+            method.visitTypeInsn( Opcodes.CHECKCAST, Type.getInternalName( type ) );
+            method.visitVarInsn( Opcodes.ASTORE, 2 );
+            method.visitVarInsn( Opcodes.ALOAD, 2 );
+            method.visitJumpInsn( Opcodes.IFNONNULL, supplied );
+            method.visitTypeInsn( Opcodes.NEW, Type.getInternalName( IllegalStateException.class ) );
+            method.visitInsn( Opcodes.DUP );
+            method.visitLdcInsn( "Lazy state supplier returned null." );
+            method.visitMethodInsn( Opcodes.INVOKESPECIAL, Type.getInternalName( IllegalStateException.class ),
+                                    "<init>",
+                                    Type.getMethodDescriptor( Type.VOID_TYPE, Type.getType( String.class ) ) );
+            method.visitInsn( Opcodes.ATHROW );
+
+            method.visitLabel( supplied );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitVarInsn( Opcodes.ALOAD, 2 );
+            method.visitFieldInsn( Opcodes.PUTFIELD, className, "state", descriptor() );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitInsn( Opcodes.ACONST_NULL );
+            method.visitFieldInsn( Opcodes.PUTFIELD, className, "supplier", SUPPLIER );
+
+            method.visitLabel( done );
+            method.visitVarInsn( Opcodes.ALOAD, 1 );
+            method.visitInsn( Opcodes.MONITOREXIT );
+            method.visitLabel( end );
+            method.visitVarInsn( Opcodes.ALOAD, 2 );
+            method.visitInsn( Opcodes.ARETURN );
+
+            method.visitLabel( handler );
+            method.visitVarInsn( Opcodes.ALOAD, 1 );
+            method.visitInsn( Opcodes.MONITOREXIT );
+            method.visitInsn( Opcodes.ATHROW );
+            method.visitMaxs( 3, 3 );
+            method.visitEnd();
+        }
+
+        @Override
+        void initialize( String className, MethodVisitor method )
+        {
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitVarInsn( Opcodes.ALOAD, 1 );
+            method.visitTypeInsn( Opcodes.CHECKCAST, Type.getInternalName( Supplier.class ) );
+            method.visitFieldInsn( Opcodes.PUTFIELD, className, "supplier", SUPPLIER );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitTypeInsn( Opcodes.NEW, Type.getInternalName( Object.class ) );
+            method.visitInsn( Opcodes.DUP );
+            method.visitMethodInsn( Opcodes.INVOKESPECIAL, Type.getInternalName( Object.class ), "<init>", "()V" );
+            method.visitFieldInsn( Opcodes.PUTFIELD, className, "lock", OBJECT );
+        }
+
+        @Override
+        void load( String className, MethodVisitor method )
+        {
+            // fast path is a volatile read of the state, only the first calls take the slow path under the lock
+            // (a plain load on x86, a load-acquire elsewhere; a plain read could see a partially constructed state)
+            Label ready = new Label();
+            super.load( className, method );
+            method.visitInsn( Opcodes.DUP );
+            method.visitJumpInsn( Opcodes.IFNONNULL, ready );
+            method.visitInsn( Opcodes.POP );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitMethodInsn( Opcodes.INVOKESPECIAL, className, "state", "()" + descriptor() );
+            method.visitLabel( ready );
+        }
+    }
+
+    private static class Flat extends ProxyState
+    {
+        private final Class<?>[] layout;
+
+        Flat( Class<?> type, Class<?>[] layout )
+        {
+            super( type );
+            this.layout = layout;
+        }
+
+        @Override
+        Class<?>[] types()
+        {
+            return layout.clone();
+        }
+
+        @Override
+        Class<?>[] constructorParameters()
+        {
+            return layout.clone();
+        }
+
+        private String field( int i )
+        {
+            return layout.length == 1 ? "state" : "state" + i;
+        }
+
+        @Override
+        void generateFields( ClassVisitor classVisitor )
+        {
+            for ( int i = 0; i < layout.length; i++ )
+            {
+                classVisitor.visitField( Opcodes.ACC_PRIVATE, field( i ), Type.getDescriptor( layout[i] ), null, null );
+            }
+        }
+
+        @Override
+        void initialize( String className, MethodVisitor method )
+        {
+            for ( int i = 0, local = 1; i < layout.length; i++ )
+            {
+                Type field = Type.getType( layout[i] );
+                method.visitVarInsn( Opcodes.ALOAD, 0 );
+                method.visitVarInsn( field.getOpcode( Opcodes.ILOAD ), local );
+                method.visitFieldInsn( Opcodes.PUTFIELD, className, field( i ), field.getDescriptor() );
+                local += field.getSize();
+            }
+        }
+
+        @Override
+        void load( String className, MethodVisitor method )
+        {
+            for ( int i = 0; i < layout.length; i++ )
+            {
+                method.visitVarInsn( Opcodes.ALOAD, 0 );
+                method.visitFieldInsn( Opcodes.GETFIELD, className, field( i ), Type.getDescriptor( layout[i] ) );
+            }
+        }
+    }
+
+    private static class Striped extends ProxyState
+    {
+        private final int stripes;
+
+        Striped( Class<?> type, int stripes )
+        {
+            super( type );
+            this.stripes = stripes;
+        }
+
+        @Override
+        void generateFields( ClassVisitor classVisitor )
+        {
+            classVisitor.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "stripes", "[" + descriptor(), null,
+                                     null );
+        }
+
+        @Override
+        void generateMethods( String className, ClassVisitor classVisitor )
+        {
+            MethodInfo.BootstrapMethod combine = MethodInfo.bootstrapMethod( className, "combine" );
+            combine.generateMethod( className, this, classVisitor, combine );
+        }
+
+        @Override
+        void initialize( String className, MethodVisitor method )
+        {
+            // stripes = new S[n]; for ( int i = 0; i < n; i++ ) stripes[i] = supplier.get();
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitLdcInsn( stripes );
+            method.visitTypeInsn( Opcodes.ANEWARRAY, Type.getInternalName( type ) );
+            method.visitFieldInsn( Opcodes.PUTFIELD, className, "stripes", "[" + descriptor() );
+            Label loop = new Label(), done = new Label();
+            method.visitInsn( Opcodes.ICONST_0 );
+            method.visitVarInsn( Opcodes.ISTORE, 2 );
+            method.visitLabel( loop );
+            method.visitVarInsn( Opcodes.ILOAD, 2 );
+            method.visitLdcInsn( stripes );
+            method.visitJumpInsn( Opcodes.IF_ICMPGE, done );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, "stripes", "[" + descriptor() );
+            method.visitVarInsn( Opcodes.ILOAD, 2 );
+            method.visitVarInsn( Opcodes.ALOAD, 1 );
+            method.visitTypeInsn( Opcodes.CHECKCAST, Type.getInternalName( Supplier.class ) );
+            method.visitMethodInsn( Opcodes.INVOKEINTERFACE, Type.getInternalName( Supplier.class ), "get",
+                                    Type.getMethodDescriptor( Type.getType( Object.class ) ) );
+            method.visitTypeInsn( Opcodes.CHECKCAST, Type.getInternalName( type ) );
+            method.visitInsn( Opcodes.AASTORE );
+            method.visitIincInsn( 2, 1 );
+            method.visitJumpInsn( Opcodes.GOTO, loop );
+            method.visitLabel( done );
+        }
+
+        @Override
+        void load( String className, MethodVisitor method )
+        {
+            // stripes[identityHashCode( currentThread() ) & (n - 1)], n is a power of two
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitFieldInsn( Opcodes.GETFIELD, className, "stripes", "[" + descriptor() );
+            method.visitMethodInsn( Opcodes.INVOKESTATIC, Type.getInternalName( Thread.class ), "currentThread",
+                                    Type.getMethodDescriptor( Type.getType( Thread.class ) ) );
+            method.visitMethodInsn( Opcodes.INVOKESTATIC, Type.getInternalName( System.class ), "identityHashCode",
+                                    Type.getMethodDescriptor( Type.INT_TYPE, Type.getType( Object.class ) ) );
+            method.visitLdcInsn( stripes - 1 );
+            method.visitInsn( Opcodes.IAND );
+            method.visitInsn( Opcodes.AALOAD );
+        }
+    }
+
+    private static class Linked extends ProxyState
+    {
+        private static final String LINKAGE = Type.getDescriptor( MethodHandle[].class );
+
+        Linked( Class<?> type )
+        {
+            super( type );
+        }
+
+        @Override
+        Class<?>[] constructorParameters()
+        {
+            return new Class<?>[]{Object.class, MethodHandle[].class};
+        }
+
+        @Override
+        boolean bootstrapped()
+        {
+            return false;
+        }
+
+        @Override
+        void generateFields( ClassVisitor classVisitor )
+        {
+            // the implementations linked by the bootstrap of the instance, shared by all instances of that bootstrap
+            super.generateFields( classVisitor );
+            classVisitor.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "linkage", LINKAGE, null, null );
+        }
+
+        @Override
+        void initialize( String className, MethodVisitor method )
+        {
+            super.initialize( className, method );
+            method.visitVarInsn( Opcodes.ALOAD, 0 );
+            method.visitVarInsn( Opcodes.ALOAD, 2 );
+            method.visitFieldInsn( Opcodes.PUTFIELD, className, "linkage", LINKAGE );
+        }
+    }
+
+    private static class Constant extends ProxyState
+    {
+        Constant( Class<?> type )
+        {
+            super( type );
+        }
+
+        @Override
+        Class<?>[] types()
+        {
+            return new Class<?>[0];
+        }
+
+        @Override
+        Class<?>[] constructorParameters()
+        {
+            return new Class<?>[0];
+        }
+
+        @Override
+        void generateFields( ClassVisitor classVisitor )
+        {
+            // only read when a call site is linked, after that the state is bound into the call site target
+            classVisitor.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "state", descriptor(), null, null );
+        }
+
+        @Override
+        void generateMethods( String className, ClassVisitor classVisitor )
+        {
+            // private S state() - used by the default equals to get the state of the other proxy
+            MethodVisitor method = classVisitor.visitMethod( Opcodes.ACC_PRIVATE, "state", "()" + descriptor(), null,
+                                                             null );
+            method.visitCode();
+            method.visitFieldInsn( Opcodes.GETSTATIC, className, "state", descriptor() );
+            method.visitInsn( Opcodes.ARETURN );
+            method.visitMaxs( 1, 1 );
+            method.visitEnd();
+        }
+
+        @Override
+        MethodInfo.BootstrapMethod bootstrapMethod( String className )
+        {
+            return MethodInfo.constantBootstrapMethod( className, this );
+        }
+
+        @Override
+        void initialize( String className, MethodVisitor method )
+        {
+        }
+
+        @Override
+        void load( String className, MethodVisitor method )
+        {
+        }
+    }
+
+    private static class Guarded extends ProxyState
+    {
+        private static final String LOCK = Type.getDescriptor( Lock.class );
+        private final ProxyState state;
+        private final LockMode mode;
+
+        Guarded( ProxyState state, LockMode mode )
+        {
+            super( state.type );
+            this.state = state;
+            this.mode = mode;
+        }
+
+        @Override
+        void generateFields( ClassVisitor classVisitor )
+        {
+            state.generateFields( classVisitor );
+            switch ( mode )
+            {
+            case READ_WRITE:
+                classVisitor.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "readLock", LOCK, null, null );
+                classVisitor.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "writeLock", LOCK, null, null );
+                break;
+            case STAMPED:
+                classVisitor.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "lock",
+                                         Type.getDescriptor( StampedLock.class ), null, null );
+                break;
+            }
+        }
+
+        @Override
+        Class<?>[] types()
+        {
+            return state.types();
+        }
+
+        @Override
+        Class<?>[] constructorParameters()
+        {
+            return state.constructorParameters();
+        }
+
+        @Override
+        void generateMethods( String className, ClassVisitor classVisitor )
+        {
+            state.generateMethods( className, classVisitor );
+        }
+
+        @Override
+        MethodInfo.BootstrapMethod bootstrapMethod( String className )
+        {
+            return state.bootstrapMethod( className );
+        }
+
+        @Override
+        void initialize( String className, MethodVisitor method )
+        {
+            state.initialize( className, method );
+            switch ( mode )
+            {
+            case READ_WRITE:
+                String readWriteLock = Type.getInternalName( ReentrantReadWriteLock.class );
+                method.visitVarInsn( Opcodes.ALOAD, 0 );
+                method.visitTypeInsn( Opcodes.NEW, readWriteLock );
+                method.visitInsn( Opcodes.DUP );
+                method.visitMethodInsn( Opcodes.INVOKESPECIAL, readWriteLock, "<init>", "()V" );
+                method.visitInsn( Opcodes.DUP_X1 );
+                method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, readWriteLock, "readLock", Type.getMethodDescriptor(
+                        Type.getType( ReentrantReadWriteLock.ReadLock.class ) ) );
+                method.visitFieldInsn( Opcodes.PUTFIELD, className, "readLock", LOCK );
+                method.visitVarInsn( Opcodes.ALOAD, 0 );
+                method.visitInsn( Opcodes.SWAP );
+                method.visitMethodInsn( Opcodes.INVOKEVIRTUAL, readWriteLock, "writeLock", Type.getMethodDescriptor(
+                        Type.getType( ReentrantReadWriteLock.WriteLock.class ) ) );
+                method.visitFieldInsn( Opcodes.PUTFIELD, className, "writeLock", LOCK );
+                break;
+            case STAMPED:
+                String stampedLock = Type.getInternalName( StampedLock.class );
+                method.visitVarInsn( Opcodes.ALOAD, 0 );
+                method.visitTypeInsn( Opcodes.NEW, stampedLock );
+                method.visitInsn( Opcodes.DUP );
+                method.visitMethodInsn( Opcodes.INVOKESPECIAL, stampedLock, "<init>", "()V" );
+                method.visitFieldInsn( Opcodes.PUTFIELD, className, "lock", Type.getDescriptor( StampedLock.class ) );
+                break;
+            }
+        }
+
+        @Override
+        void load( String className, MethodVisitor method )
+        {
+            state.load( className, method );
+        }
+    }
+}
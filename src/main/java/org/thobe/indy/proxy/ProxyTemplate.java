@@ -0,0 +1,104 @@
+package org.thobe.indy.proxy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import static java.lang.invoke.MethodHandles.constant;
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.guardWithTest;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+public final class ProxyTemplate<S, T>
+{
+    private final Class<S> stateType;
+    private final Class<?> templateClass;
+    private final MethodHandles.Lookup templateLookup;
+    private final String[] names;
+    private final MethodType[] signatures;
+
+    ProxyTemplate( Class<S> stateType, Class<?> templateClass, MethodHandles.Lookup templateLookup, String[] names,
+                   MethodType[] signatures )
+    {
+        this.stateType = stateType;
+        this.templateClass = templateClass;
+        this.templateLookup = templateLookup;
+        this.names = names;
+        this.signatures = signatures;
+    }
+
+    public IndyProxy<S, T> createProxyFactory( Bootstrap<S> bootstrap )
+    {
+        if ( bootstrap.stateLayout.length != 1 || bootstrap.stateType.isPrimitive() )
+        {
+            throw new IllegalArgumentException(
+                    "Proxy templates cannot be instantiated for a flattened or primitive state layout." );
+        }
+        if ( bootstrap.stateType != stateType )
+        {
+            throw new IllegalArgumentException(
+                    "Bootstrap state type " + bootstrap.stateType.getName() + " does not match template state type "
+                    + stateType.getName() );
+        }
+        // all factories share the template class, each one links its own implementations once
+        MethodHandle[] linkage = new MethodHandle[names.length];
+        for ( int i = 0; i < linkage.length; i++ )
+        {
+            MethodHandle target = bootstrap.bootstrap( templateClass, templateLookup, names[i], signatures[i] )
+                                           .dynamicInvoker().asType( signatures[i] );
+            if ( names[i].equals( "equals" ) && signatures[i].equals( methodType( boolean.class, stateType,
+                                                                                  Object.class ) ) )
+            {
+                target = sameLinkage( target, linkage );
+            }
+            linkage[i] = target;
+        }
+        return IndyProxy.linked( templateClass, bootstrap, linkage );
+    }
+
+    private MethodHandle sameLinkage( MethodHandle equals, MethodHandle[] linkage )
+    {
+        // instances of different bootstraps are never equal, even though they are of the same class
+        try
+        {
+            MethodHandle test = insertArguments( SAME_LINKAGE, 0, templateClass, templateLookup.findGetter(
+                    templateClass, "linkage", MethodHandle[].class ), linkage );
+            return guardWithTest( dropArguments( test, 0, stateType ), equals,
+                                  dropArguments( constant( boolean.class, false ), 0, stateType, Object.class ) );
+        }
+        catch ( NoSuchFieldException | IllegalAccessException e )
+        {
+            throw new LinkageError( "Could not find linkage of template.", e );
+        }
+    }
+
+    private static final MethodHandle SAME_LINKAGE;
+
+    static
+    {
+        try
+        {
+            SAME_LINKAGE = lookup().findStatic( ProxyTemplate.class, "sameLinkage", methodType(
+                    boolean.class, Class.class, MethodHandle.class, MethodHandle[].class, Object.class ) );
+        }
+        catch ( NoSuchMethodException | IllegalAccessException e )
+        {
+            throw new LinkageError( "Could not find sameLinkage", e );
+        }
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static boolean sameLinkage( Class<?> type, MethodHandle getter, MethodHandle[] linkage, Object that )
+    {
+        try
+        {
+            return type.isInstance( that ) && getter.invoke( that ) == linkage;
+        }
+        catch ( Throwable throwable )
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package org.thobe.indy.proxy;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+public class StructBootstrap extends Bootstrap<StructBootstrap.Cursor>
+{
+    private final ByteOrder order;
+    private final Map<String, Property> layout = new TreeMap<>();
+    private final int size;
+
+    public StructBootstrap( Class<?>... structTypes )
+    {
+        this( ByteOrder.nativeOrder(), 8, structTypes );
+    }
+
+    public StructBootstrap( ByteOrder order, int alignment, Class<?>... structTypes )
+    {
+        super( Cursor.class );
+        if ( alignment <= 0 || Integer.bitCount( alignment ) != 1 )
+        {
+            throw new IllegalArgumentException( "Alignment must be a positive power of two: " + alignment );
+        }
+        this.order = order;
+        for ( Class<?> type : structTypes )
+        {
+            for ( Method method : type.getMethods() )
+            {
+                Property.define( layout, method );
+            }
+        }
+        int offset = 0, recordAlignment = 1;
+        for ( Property property : layout.values() )
+        {
+            int fieldAlignment = Math.min( property.size(), alignment );
+            offset = align( offset, fieldAlignment );
+            property.offset = offset;
+            offset += property.size();
+            recordAlignment = Math.max( recordAlignment, fieldAlignment );
+        }
+        this.size = Math.max( 1, align( offset, recordAlignment ) );
+    }
+
+    private static int align( int offset, int alignment )
+    {
+        return (offset + alignment - 1) & -alignment;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int offsetOf( String property )
+    {
+        Property field = layout.get( property );
+        if ( field == null )
+        {
+            throw new IllegalArgumentException( "No such property: " + property );
+        }
+        return field.offset;
+    }
+
+    public Cursor cursor( ByteBuffer buffer )
+    {
+        return new Cursor( buffer.duplicate().order( order ), size );
+    }
+
+    @Override
+    public CallSite bootstrap( Class<?> proxyClass, MethodHandles.Lookup lookup, String name, MethodType signature )
+    {
+        MethodHandle impl = defaultImplementationOf( proxyClass, lookup, name, signature );
+        if ( impl == null )
+        {
+            impl = accessor( name, signature );
+        }
+        return new ConstantCallSite( impl );
+    }
+
+    private MethodHandle accessor( String name, MethodType signature )
+    {
+        Property property = layout.get( Property.name( name ) );
+        if ( property != null )
+        {
+            if ( signature.parameterCount() == 1 && signature.returnType() == property.type )
+            {
+                return insertArguments( GETTERS.get( property.type ), 1, property.offset );
+            }
+            if ( signature.parameterCount() == 2 && signature.parameterType( 1 ) == property.type
+                 && signature.returnType() == void.class )
+            {
+                return insertArguments( SETTERS.get( property.type ), 1, property.offset );
+            }
+        }
+        return unsupportedOperation( signature );
+    }
+
+    public static final class Cursor
+    {
+        final ByteBuffer buffer;
+        final int size;
+        int position;
+
+        private Cursor( ByteBuffer buffer, int size )
+        {
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        public int records()
+        {
+            return buffer.limit() / size;
+        }
+
+        public int index()
+        {
+            return position / size;
+        }
+
+        public Cursor moveTo( int index )
+        {
+            if ( index < 0 || index >= records() )
+            {
+                throw new IndexOutOfBoundsException( "No record " + index + " in " + records() + " records." );
+            }
+            position = index * size;
+            return this;
+        }
+
+        public Cursor next()
+        {
+            position += size;
+            return this;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Cursor[record=" + index() + ", size=" + size + "]";
+        }
+    }
+
+    private static final class Property
+    {
+        final Class<?> type;
+        int offset;
+
+        private Property( Class<?> type )
+        {
+            this.type = type;
+        }
+
+        static void define( Map<String, Property> layout, Method method )
+        {
+            Class<?> type;
+            if ( method.getParameterTypes().length == 0 && method.getReturnType() != void.class
+                 && (hasPrefix( method.getName(), "get" ) || (hasPrefix( method.getName(), "is" )
+                                                              && method.getReturnType() == boolean.class)) )
+            {
+                type = method.getReturnType();
+            }
+            else if ( method.getParameterTypes().length == 1 && method.getReturnType() == void.class
+                      && hasPrefix( method.getName(), "set" ) )
+            {
+                type = method.getParameterTypes()[0];
+            }
+            else
+            {
+                return;
+            }
+            String name = name( method.getName() );
+            if ( name.isEmpty() )
+            {
+                return;
+            }
+            if ( !type.isPrimitive() )
+            {
+                throw new IllegalArgumentException( "Struct property '" + name + "' is not primitive: " + type );
+            }
+            Property property = layout.get( name );
+            if ( property == null )
+            {
+                layout.put( name, new Property( type ) );
+            }
+            else if ( property.type != type )
+            {
+                throw new IllegalArgumentException( "Conflicting types for struct property '" + name + "': "
+                                                    + property.type + " and " + type );
+            }
+        }
+
+        static String name( String methodName )
+        {
+            String name;
+            if ( hasPrefix( methodName, "is" ) )
+            {
+                name = methodName.substring( 2 );
+            }
+            else if ( hasPrefix( methodName, "get" ) || hasPrefix( methodName, "set" ) )
+            {
+                name = methodName.substring( 3 );
+            }
+            else
+            {
+                return "";
+            }
+            if ( name.isEmpty() || (name.length() > 1 && Character.isUpperCase( name.charAt( 1 ) )) )
+            {
+                return name; // keep acronyms such as "URL" as they are
+            }
+            return Character.toLowerCase( name.charAt( 0 ) ) + name.substring( 1 );
+        }
+
+        private static boolean hasPrefix( String methodName, String prefix )
+        {
+            // "getPrice" but not "getaway" or "settle"
+            return methodName.length() > prefix.length() && methodName.startsWith( prefix )
+                   && Character.isUpperCase( methodName.charAt( prefix.length() ) );
+        }
+
+        int size()
+        {
+            switch ( type.getName() )
+            {
+            case "boolean":
+            case "byte":
+                return 1;
+            case "short":
+            case "char":
+                return 2;
+            case "int":
+            case "float":
+                return 4;
+            case "long":
+            case "double":
+                return 8;
+            default:
+                throw new IllegalStateException( "Unsupported primitive type:" + type );
+            }
+        }
+    }
+
+    private static final Map<Class<?>, MethodHandle> GETTERS = new HashMap<>(), SETTERS = new HashMap<>();
+
+    static
+    {
+        for ( Class<?> type : new Class<?>[]{boolean.class, byte.class, short.class, char.class,
+                                              int.class, long.class, float.class, double.class} )
+        {
+            String name = Character.toUpperCase( type.getName().charAt( 0 ) ) + type.getName().substring( 1 );
+            GETTERS.put( type, helper( type, "get" + name, Cursor.class, int.class ) );
+            SETTERS.put( type, helper( void.class, "put" + name, Cursor.class, int.class, type ) );
+        }
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static boolean getBoolean( Cursor cursor, int offset )
+    {
+        return cursor.buffer.get( cursor.position + offset ) != 0;
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static void putBoolean( Cursor cursor, int offset, boolean value )
+    {
+        cursor.buffer.put( cursor.position + offset, (byte) (value ? 1 : 0) );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static byte getByte( Cursor cursor, int offset )
+    {
+        return cursor.buffer.get( cursor.position + offset );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static void putByte( Cursor cursor, int offset, byte value )
+    {
+        cursor.buffer.put( cursor.position + offset, value );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static short getShort( Cursor cursor, int offset )
+    {
+        return cursor.buffer.getShort( cursor.position + offset );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static void putShort( Cursor cursor, int offset, short value )
+    {
+        cursor.buffer.putShort( cursor.position + offset, value );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static char getChar( Cursor cursor, int offset )
+    {
+        return cursor.buffer.getChar( cursor.position + offset );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static void putChar( Cursor cursor, int offset, char value )
+    {
+        cursor.buffer.putChar( cursor.position + offset, value );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static int getInt( Cursor cursor, int offset )
+    {
+        return cursor.buffer.getInt( cursor.position + offset );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static void putInt( Cursor cursor, int offset, int value )
+    {
+        cursor.buffer.putInt( cursor.position + offset, value );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static long getLong( Cursor cursor, int offset )
+    {
+        return cursor.buffer.getLong( cursor.position + offset );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static void putLong( Cursor cursor, int offset, long value )
+    {
+        cursor.buffer.putLong( cursor.position + offset, value );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static float getFloat( Cursor cursor, int offset )
+    {
+        return cursor.buffer.getFloat( cursor.position + offset );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static void putFloat( Cursor cursor, int offset, float value )
+    {
+        cursor.buffer.putFloat( cursor.position + offset, value );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static double getDouble( Cursor cursor, int offset )
+    {
+        return cursor.buffer.getDouble( cursor.position + offset );
+    }
+
+    @SuppressWarnings("unused"/*called through method handle*/)
+    private static void putDouble( Cursor cursor, int offset, double value )
+    {
+        cursor.buffer.putDouble( cursor.position + offset, value );
+    }
+
+    private static MethodHandle helper( Class<?> returnType, String name, Class<?>... parameterTypes )
+    {
+        try
+        {
+            return lookup().findStatic( StructBootstrap.class, name, methodType( returnType, parameterTypes ) );
+        }
+        catch ( NoSuchMethodException | IllegalAccessException e )
+        {
+            throw new LinkageError( "Could not find: " + name, e );
+        }
+    }
+}
@@ -8,13 +8,23 @@ import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import org.junit.Test;
 
+import static java.lang.invoke.MethodHandles.insertArguments;
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.thobe.indy.proxy.IndyProxy.createProxyFactory;
 
@@ -45,6 +55,371 @@ public class IndyProxyTest
         assertEquals( "toString equals state toString", state, instance1.toString() );
     }
 
+    @Test
+    public void shouldInstantiateTemplateForDifferentBootstraps() throws Exception
+    {
+        // given
+        ProxyTemplate<String, Interface1> template = IndyProxy.createProxyTemplate( classLoader(), String.class,
+                                                                                    Interface1.class );
+
+        // when
+        IndyProxy<String, Interface1> hello = template.createProxyFactory( new GreetingBootstrap( "hello" ) );
+        IndyProxy<String, Interface1> goodbye = template.createProxyFactory( new GreetingBootstrap( "goodbye" ) );
+        Interface1 instance1 = hello.create( "foo" );
+        Interface1 instance2 = goodbye.create( "foo" );
+
+        // then
+        assertEquals( "hello foo", instance1.sayHello() );
+        assertEquals( "goodbye foo", instance2.sayHello() );
+        assertSame( "one class for all bootstraps", instance1.getClass(), instance2.getClass() );
+        assertTrue( "instances of the same bootstrap are equal", instance1.equals( hello.create( "foo" ) ) );
+        assertFalse( "instances of different bootstraps are not equal", instance1.equals( instance2 ) );
+        assertEquals( "toString equals state toString", "foo", instance2.toString() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectTemplateForPrimitiveState() throws Exception
+    {
+        IndyProxy.createProxyTemplate( classLoader(), long.class, Interface1.class );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectFlattenedBootstrapForTemplate() throws Exception
+    {
+        IndyProxy.createProxyTemplate( classLoader(), Object[].class, Versioned.class )
+                 .createProxyFactory( new VersionedBootstrap() );
+    }
+
+    @Test
+    public void shouldForwardMethodsNotOverriddenByBootstrap() throws Exception
+    {
+        // given
+        ShoutingBootstrap bootstrap = new ShoutingBootstrap();
+        IndyProxy<Greeter, Greeter> factory = IndyProxy.createForwardingProxyFactory( classLoader(), bootstrap,
+                                                                                      Greeter.class );
+        Greeter delegate = new Greeter()
+        {
+            @Override
+            public String greet( String name )
+            {
+                return "hello " + name;
+            }
+
+            @Override
+            public long count( long first, int second )
+            {
+                return first + second;
+            }
+        };
+
+        // when
+        Greeter decorator = factory.create( delegate );
+
+        // then
+        assertEquals( "HELLO FOO", decorator.greet( "foo" ) );
+        assertEquals( 42L, decorator.count( 40L, 2 ) );
+        assertFalse( "forwarded method is not bootstrapped", bootstrap.bootstrapped.contains( "count" ) );
+        assertEquals( delegate.hashCode(), decorator.hashCode() );
+    }
+
+    @Test
+    public void shouldNotForwardToStaticMethodsOfState() throws Exception
+    {
+        // given
+        Formatter formatter = IndyProxy.createForwardingProxyFactory( classLoader(), new FormatterBootstrap(),
+                                                                      Formatter.class ).create( "value: " );
+
+        // when
+        String formatted = formatter.valueOf( 42 );
+
+        // then
+        assertEquals( "value: 42", formatted );
+    }
+
+    @Test
+    public void shouldMaterializeLazyStateOnFirstUse() throws Exception
+    {
+        // given
+        IndyProxy<Supplier<? extends String>, Interface1> factory = IndyProxy.createLazyProxyFactory(
+                classLoader(), new SayHelloBootstrap(), Interface1.class );
+        final AtomicInteger supplied = new AtomicInteger();
+        Supplier<String> supplier = new Supplier<String>()
+        {
+            @Override
+            public String get()
+            {
+                supplied.incrementAndGet();
+                return "foo";
+            }
+        };
+
+        // when
+        Interface1 instance1 = factory.create( supplier );
+        Interface1 instance2 = factory.create( supplier );
+
+        // then
+        assertEquals( "state is not supplied on creation", 0, supplied.get() );
+        assertEquals( "hello foo", instance1.sayHello() );
+        assertEquals( "hello foo", instance1.sayHello() );
+        assertEquals( "state is supplied once per instance", 1, supplied.get() );
+        assertTrue( "instance equals lazy instance with same state", instance1.equals( instance2 ) );
+        assertEquals( "state is supplied once per instance", 2, supplied.get() );
+        assertEquals( "foo", instance2.toString() );
+    }
+
+    @Test
+    public void shouldGuardStateWithEachLockMode() throws Exception
+    {
+        for ( LockMode mode : LockMode.values() )
+        {
+            // given
+            final Counter counter = IndyProxy.<Count, Counter>createGuardedProxyFactory(
+                    classLoader(), new CounterBootstrap(), mode, Counter.class ).create( new Count() );
+            Thread[] threads = new Thread[4];
+            for ( int i = 0; i < threads.length; i++ )
+            {
+                threads[i] = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for ( int j = 0; j < 10_000; j++ )
+                        {
+                            counter.increment();
+                            counter.get();
+                        }
+                    }
+                };
+            }
+
+            // when
+            for ( Thread thread : threads )
+            {
+                thread.start();
+            }
+            for ( Thread thread : threads )
+            {
+                thread.join();
+            }
+
+            // then
+            assertEquals( mode + " guards all updates", 40_000L, counter.get() );
+        }
+    }
+
+    @Test
+    public void shouldRetryOptimisticReadOverlappedByWrite() throws Exception
+    {
+        // given
+        final Cell cell = new Cell();
+        final Register register = IndyProxy.<Cell, Register>createGuardedProxyFactory(
+                classLoader(), new RegisterBootstrap(), LockMode.STAMPED, Register.class ).create( cell );
+        cell.duringRead = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Thread writer = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        register.setValue( 42 );
+                    }
+                };
+                writer.start();
+                try
+                {
+                    writer.join();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new AssertionError( e );
+                }
+            }
+        };
+
+        // when
+        long value = register.getValue();
+
+        // then
+        assertEquals( "value written during the optimistic read", 42L, value );
+        assertEquals( "optimistic read retried under the read lock", 2, cell.reads );
+    }
+
+    @Test
+    public void shouldPassFlattenedStateFieldsToImplementation() throws Exception
+    {
+        // given
+        VersionedFactory factory = IndyProxy.createFlatProxyFactory( classLoader(), new VersionedBootstrap(),
+                                                                     VersionedFactory.class, Versioned.class );
+
+        // when
+        Versioned instance1 = factory.create( 7L, 2, "payload" );
+        Versioned instance2 = factory.create( 7L, 2, "payload" );
+        Versioned instance3 = factory.create( 7L, 3, "payload" );
+
+        // then
+        assertEquals( 7L, instance1.id() );
+        assertEquals( "7@2: payload", instance1.describe() );
+        assertTrue( "instance equals instance with same fields", instance1.equals( instance2 ) );
+        assertFalse( "instance not equals instance with other fields", instance1.equals( instance3 ) );
+        assertEquals( Arrays.hashCode( new Object[]{7L, 2, "payload"} ), instance1.hashCode() );
+        assertEquals( "[7, 2, payload]", instance1.toString() );
+    }
+
+    @Test
+    public void shouldImplementFactoryTypeWithInheritedFactoryMethod() throws Exception
+    {
+        // given
+        InheritedVersionedFactory factory = IndyProxy.createFlatProxyFactory(
+                classLoader(), new VersionedBootstrap(), InheritedVersionedFactory.class, Versioned.class );
+
+        // when
+        Versioned instance = factory.create( 7L, 2, "payload" );
+
+        // then
+        assertEquals( "7@2: payload", instance.describe() );
+    }
+
+    @Test
+    public void shouldCombineStripesForAggregatingMethods() throws Exception
+    {
+        // given
+        final Accumulator accumulator = IndyProxy.createStripedProxyFactory(
+                classLoader(), new AccumulatorBootstrap(), 4, Accumulator.class ).create( new Supplier<AtomicLong>()
+        {
+            @Override
+            public AtomicLong get()
+            {
+                return new AtomicLong();
+            }
+        } );
+        Thread[] threads = new Thread[4];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for ( int j = 0; j < 10_000; j++ )
+                    {
+                        accumulator.add( 2 );
+                    }
+                }
+            };
+        }
+
+        // when
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        // then
+        assertEquals( 80_000L, accumulator.sum() );
+        accumulator.reset();
+        assertEquals( 0L, accumulator.sum() );
+        assertTrue( "identity equality", accumulator.equals( accumulator ) );
+    }
+
+    @Test
+    public void shouldInvokeProxiedMethodOverManyStates() throws Exception
+    {
+        // given
+        IndyProxy<AtomicLong, Accumulator> factory = createProxyFactory( classLoader(), new AccumulatorBootstrap(),
+                                                                         Accumulator.class );
+        AtomicLong[] states = new AtomicLong[1000];
+        long[] values = new long[states.length], sums = new long[states.length];
+        for ( int i = 0; i < states.length; i++ )
+        {
+            states[i] = new AtomicLong();
+            values[i] = i;
+        }
+
+        // when
+        factory.bulkInvoker( BroadcastAdd.class ).add( states, 5 );
+        factory.parallelBulkInvoker( ElementwiseAdd.class, 64 ).add( states, values );
+        factory.bulkInvoker( BulkSum.class ).sum( Arrays.asList( states ), sums );
+
+        // then
+        for ( int i = 0; i < states.length; i++ )
+        {
+            assertEquals( i + 5L, sums[i] );
+            assertEquals( sums[i], factory.create( states[i] ).sum() );
+        }
+    }
+
+    @Test
+    public void shouldLinkBulkInvokersWithTheLookupOfTheProxy() throws Exception
+    {
+        // given
+        IndyProxy<Count, Counter> factory = createProxyFactory( classLoader(), new CounterBootstrap(),
+                                                                Counter.class );
+        Count[] states = {new Count(), new Count()};
+        boolean[] equal = new boolean[states.length];
+        String[] strings = new String[states.length];
+
+        // when
+        factory.bulkInvoker( BulkEquals.class ).equals( states, equal, factory.create( states[0] ) );
+        factory.bulkInvoker( BulkToString.class ).toString( states, strings );
+
+        // then
+        assertTrue( equal[0] );
+        assertFalse( equal[1] );
+        assertEquals( states[1].toString(), strings[1] );
+    }
+
+    @Test
+    public void shouldImplementBulkTypeWithInheritedBulkMethod() throws Exception
+    {
+        // given
+        IndyProxy<AtomicLong, Accumulator> factory = createProxyFactory( classLoader(), new AccumulatorBootstrap(),
+                                                                         Accumulator.class );
+        AtomicLong[] states = {new AtomicLong( 1 ), new AtomicLong( 2 )};
+
+        // when
+        factory.bulkInvoker( InheritedBroadcastAdd.class ).add( states, 5 );
+
+        // then
+        assertEquals( 6L, states[0].get() );
+        assertEquals( 7L, states[1].get() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectBulkTypeNotAccessibleFromProxy() throws Exception
+    {
+        // given
+        IndyProxy<AtomicLong, Accumulator> factory = createProxyFactory( classLoader(), new AccumulatorBootstrap(),
+                                                                         Accumulator.class );
+
+        // when
+        factory.bulkInvoker( HiddenBroadcastAdd.class );
+    }
+
+    @Test
+    public void shouldBindStateOfConstantProxyAtLinkTime() throws Exception
+    {
+        // when
+        Interface1 hello = IndyProxy.createConstantProxy( classLoader(), new GreetingBootstrap( "hello" ), "foo",
+                                                          Interface1.class );
+        Interface1 goodbye = IndyProxy.createConstantProxy( classLoader(), new GreetingBootstrap( "goodbye" ), "foo",
+                                                            Interface1.class );
+
+        // then
+        assertEquals( "hello foo", hello.sayHello() );
+        assertEquals( "goodbye foo", goodbye.sayHello() );
+        assertEquals( "toString equals state toString", "foo", hello.toString() );
+        assertEquals( "foo".hashCode(), hello.hashCode() );
+        assertTrue( "equal to itself", hello.equals( hello ) );
+        assertFalse( "singletons of different bootstraps are not equal", hello.equals( goodbye ) );
+    }
+
     private ClassLoader classLoader()
     {
         return getClass().getClassLoader();
@@ -93,6 +468,341 @@ public class IndyProxyTest
         }
     }
 
+    private abstract static class StaticMethodBootstrap<S> extends Bootstrap<S>
+    {
+        StaticMethodBootstrap( Class<S> stateType )
+        {
+            super( stateType );
+        }
+
+        StaticMethodBootstrap( Class<?> first, Class<?> second, Class<?>... more )
+        {
+            super( first, second, more );
+        }
+
+        @Override
+        public CallSite bootstrap( Class<?> proxyClass, MethodHandles.Lookup lookup, String name,
+                                   MethodType signature )
+        {
+            MethodHandle impl = defaultImplementationOf( proxyClass, lookup, name, signature );
+            if ( impl == null )
+            {
+                try
+                {
+                    impl = lookup().findStatic( getClass(), name, signature );
+                }
+                catch ( NoSuchMethodException | IllegalAccessException e )
+                {
+                    impl = unsupportedOperation( signature );
+                }
+            }
+            return new ConstantCallSite( impl );
+        }
+    }
+
+    public interface Greeter
+    {
+        String greet( String name );
+
+        long count( long first, int second );
+    }
+
+    private static class ShoutingBootstrap extends StaticMethodBootstrap<Greeter>
+    {
+        final Set<String> bootstrapped = new HashSet<>();
+
+        ShoutingBootstrap()
+        {
+            super( Greeter.class );
+        }
+
+        @Override
+        protected boolean overrides( String name, MethodType signature )
+        {
+            return name.equals( "greet" );
+        }
+
+        @Override
+        public CallSite bootstrap( Class<?> proxyClass, MethodHandles.Lookup lookup, String name,
+                                   MethodType signature )
+        {
+            bootstrapped.add( name );
+            return super.bootstrap( proxyClass, lookup, name, signature );
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static String greet( Greeter delegate, String name )
+        {
+            return delegate.greet( name ).toUpperCase();
+        }
+    }
+
+    public interface Formatter
+    {
+        String valueOf( Object value );
+    }
+
+    private static class FormatterBootstrap extends StaticMethodBootstrap<String>
+    {
+        FormatterBootstrap()
+        {
+            super( String.class );
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static String valueOf( String state, Object value )
+        {
+            return state + value;
+        }
+    }
+
+    public interface Counter
+    {
+        void increment();
+
+        @ReadOnly
+        long get();
+    }
+
+    static class Count
+    {
+        long value;
+    }
+
+    private static class CounterBootstrap extends StaticMethodBootstrap<Count>
+    {
+        CounterBootstrap()
+        {
+            super( Count.class );
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static void increment( Count state )
+        {
+            state.value++;
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static long get( Count state )
+        {
+            return state.value;
+        }
+    }
+
+    public interface Register
+    {
+        long getValue();
+
+        void setValue( long value );
+    }
+
+    static class Cell
+    {
+        long value;
+        int reads;
+        Runnable duringRead;
+    }
+
+    private static class RegisterBootstrap extends StaticMethodBootstrap<Cell>
+    {
+        RegisterBootstrap()
+        {
+            super( Cell.class );
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static long getValue( Cell state )
+        {
+            state.reads++;
+            long value = state.value;
+            Runnable duringRead = state.duringRead;
+            state.duringRead = null;
+            if ( duringRead != null )
+            {
+                duringRead.run();
+            }
+            return value;
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static void setValue( Cell state, long value )
+        {
+            state.value = value;
+        }
+    }
+
+    public interface Versioned
+    {
+        long id();
+
+        String describe();
+    }
+
+    public interface VersionedFactory
+    {
+        Versioned create( long id, int version, Object payload );
+    }
+
+    public interface InheritedVersionedFactory extends VersionedFactory
+    {
+    }
+
+    private static class VersionedBootstrap extends StaticMethodBootstrap<Object[]>
+    {
+        VersionedBootstrap()
+        {
+            super( long.class, int.class, Object.class );
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static long id( long id, int version, Object payload )
+        {
+            return id;
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static String describe( long id, int version, Object payload )
+        {
+            return id + "@" + version + ": " + payload;
+        }
+    }
+
+    public interface Accumulator
+    {
+        void add( long value );
+
+        @Aggregate
+        long sum();
+
+        @Aggregate
+        void reset();
+    }
+
+    public interface BroadcastAdd
+    {
+        void add( AtomicLong[] states, long value );
+    }
+
+    public interface InheritedBroadcastAdd extends BroadcastAdd
+    {
+    }
+
+    interface HiddenBroadcastAdd
+    {
+        void add( AtomicLong[] states, long value );
+    }
+
+    public interface ElementwiseAdd
+    {
+        void add( AtomicLong[] states, long[] values );
+    }
+
+    public interface BulkEquals
+    {
+        void equals( Count[] states, boolean[] results, Object other );
+    }
+
+    public interface BulkToString
+    {
+        void toString( Count[] states, String[] results );
+    }
+
+    public interface BulkSum
+    {
+        void sum( List<AtomicLong> states, long[] sums );
+    }
+
+    private static class AccumulatorBootstrap extends Bootstrap<AtomicLong>
+    {
+        AccumulatorBootstrap()
+        {
+            super( AtomicLong.class );
+        }
+
+        @Override
+        public CallSite bootstrap( Class<?> proxyClass, MethodHandles.Lookup lookup, String name,
+                                   MethodType signature )
+        {
+            try
+            {
+                return new ConstantCallSite( lookup().findStatic( getClass(), name, signature ) );
+            }
+            catch ( NoSuchMethodException | IllegalAccessException e )
+            {
+                return new ConstantCallSite( unsupportedOperation( signature ) );
+            }
+        }
+
+        @Override
+        public CallSite combine( Class<?> proxyClass, MethodHandles.Lookup lookup, String name,
+                                 MethodType signature )
+        {
+            try
+            {
+                return new ConstantCallSite( lookup().findStatic( Long.class, "sum", signature ) );
+            }
+            catch ( NoSuchMethodException | IllegalAccessException e )
+            {
+                return super.combine( proxyClass, lookup, name, signature );
+            }
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static void add( AtomicLong state, long value )
+        {
+            state.addAndGet( value );
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static long sum( AtomicLong state )
+        {
+            return state.get();
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static void reset( AtomicLong state )
+        {
+            state.set( 0 );
+        }
+    }
+
+    private static class GreetingBootstrap extends Bootstrap<String>
+    {
+        private final String greeting;
+
+        GreetingBootstrap( String greeting )
+        {
+            super( String.class );
+            this.greeting = greeting;
+        }
+
+        @Override
+        public CallSite bootstrap( Class<?> proxyClass, MethodHandles.Lookup lookup, String name,
+                                   MethodType signature )
+        {
+            MethodHandle impl = defaultImplementationOf( proxyClass, lookup, name, signature );
+            if ( impl == null )
+            {
+                try
+                {
+                    impl = insertArguments( lookup().findStatic( getClass(), "greet", methodType(
+                            String.class, String.class, String.class ) ), 0, greeting );
+                }
+                catch ( NoSuchMethodException | IllegalAccessException e )
+                {
+                    impl = unsupportedOperation( signature );
+                }
+            }
+            return new ConstantCallSite( impl );
+        }
+
+        @SuppressWarnings("unused"/*the implementation of the interface method*/)
+        static String greet( String greeting, String state )
+        {
+            return greeting + " " + state;
+        }
+    }
+
     public static void main( String... args )
     {
         Interface1 reflectProxy = Interface1.class.cast( Proxy.newProxyInstance(
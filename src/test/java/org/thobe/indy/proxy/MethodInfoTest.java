@@ -0,0 +1,74 @@
+package org.thobe.indy.proxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MethodInfoTest
+{
+    @Test
+    public void shouldClassifyAccessorNamesAsReadOnly() throws Exception
+    {
+        assertTrue( readOnly( "get" ) );
+        assertTrue( readOnly( "getValue" ) );
+        assertTrue( readOnly( "isEmpty" ) );
+        assertTrue( readOnly( "hasNext" ) );
+        assertTrue( readOnly( "containsKey", Object.class ) );
+        assertTrue( readOnly( "size" ) );
+        assertTrue( readOnly( "snapshot" ) );
+    }
+
+    @Test
+    public void shouldClassifyEverythingElseAsWrite() throws Exception
+    {
+        assertFalse( "read-modify-write", readOnly( "getAndIncrement" ) );
+        assertFalse( "read-modify-write", readOnly( "getOrCreate" ) );
+        assertFalse( "no word boundary after prefix", readOnly( "issue" ) );
+        assertFalse( "no word boundary after prefix", readOnly( "hashInto", int[].class ) );
+        assertFalse( "no word boundary after prefix", readOnly( "isolate" ) );
+        assertFalse( "returns nothing", readOnly( "getReady" ) );
+        assertFalse( "not an accessor name", readOnly( "increment" ) );
+        assertFalse( "annotated", readOnly( "getNext" ) );
+    }
+
+    private static boolean readOnly( String name, Class<?>... parameterTypes ) throws Exception
+    {
+        return MethodInfo.readOnly( Methods.class.getMethod( name, parameterTypes ) );
+    }
+
+    public interface Methods
+    {
+        long get();
+
+        long getValue();
+
+        boolean isEmpty();
+
+        boolean hasNext();
+
+        boolean containsKey( Object key );
+
+        int size();
+
+        @ReadOnly
+        long snapshot();
+
+        long getAndIncrement();
+
+        Object getOrCreate();
+
+        boolean issue();
+
+        int hashInto( int[] target );
+
+        Object isolate();
+
+        void getReady();
+
+        long increment();
+
+        @ReadOnly(false)
+        Object getNext();
+    }
+}
@@ -0,0 +1,131 @@
+package org.thobe.indy.proxy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.thobe.indy.proxy.IndyProxy.createProxyFactory;
+
+public class StructBootstrapTest
+{
+    @Test
+    public void shouldDeriveAlignedLayoutFromAccessors() throws Exception
+    {
+        // when
+        StructBootstrap aligned = new StructBootstrap( ByteOrder.BIG_ENDIAN, 8, Trade.class );
+        StructBootstrap packed = new StructBootstrap( ByteOrder.BIG_ENDIAN, 1, Trade.class );
+
+        // then
+        assertEquals( 0, aligned.offsetOf( "active" ) );
+        assertEquals( 8, aligned.offsetOf( "id" ) );
+        assertEquals( 16, aligned.offsetOf( "price" ) );
+        assertEquals( 24, aligned.offsetOf( "quantity" ) );
+        assertEquals( 32, aligned.size() );
+        assertEquals( 1, packed.offsetOf( "id" ) );
+        assertEquals( 21, packed.size() );
+    }
+
+    @Test
+    public void shouldReadAndWriteRecordsThroughOneView() throws Exception
+    {
+        // given
+        StructBootstrap bootstrap = new StructBootstrap( ByteOrder.LITTLE_ENDIAN, 8, Trade.class );
+        ByteBuffer buffer = ByteBuffer.allocateDirect( bootstrap.size() * 3 );
+        StructBootstrap.Cursor cursor = bootstrap.cursor( buffer );
+        Trade trade = createProxyFactory( getClass().getClassLoader(), bootstrap, Trade.class ).create( cursor );
+
+        // when
+        for ( int i = 0; i < cursor.records(); i++ )
+        {
+            cursor.moveTo( i );
+            trade.setId( 100 + i );
+            trade.setPrice( i * 1.5 );
+            trade.setQuantity( i * 10 );
+            trade.setActive( i % 2 == 0 );
+        }
+
+        // then
+        cursor.moveTo( 0 );
+        for ( int i = 0; i < 3; i++, cursor.next() )
+        {
+            assertEquals( 100 + i, trade.getId() );
+            assertEquals( i * 1.5, trade.getPrice(), 0.0 );
+            assertEquals( i * 10, trade.getQuantity() );
+            assertEquals( i % 2 == 0, trade.isActive() );
+        }
+        assertEquals( 101, buffer.order( ByteOrder.LITTLE_ENDIAN ).getLong( bootstrap.size() + 8 ) );
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldNotSupportNonAccessorMethods() throws Exception
+    {
+        // given
+        StructBootstrap bootstrap = new StructBootstrap( Trade.class );
+        Trade trade = createProxyFactory( getClass().getClassLoader(), bootstrap, Trade.class )
+                .create( bootstrap.cursor( ByteBuffer.allocate( bootstrap.size() ) ) );
+
+        // when
+        trade.close();
+    }
+
+    @Test
+    public void shouldOnlyTreatAccessorNamesAsProperties() throws Exception
+    {
+        // when
+        StructBootstrap bootstrap = new StructBootstrap( Trade.class, Sloppy.class );
+
+        // then
+        assertEquals( 32, bootstrap.size() );
+        try
+        {
+            bootstrap.offsetOf( "away" );
+            fail( "getaway() is not an accessor" );
+        }
+        catch ( IllegalArgumentException expected )
+        {
+            // no such property
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNonPrimitiveProperties() throws Exception
+    {
+        new StructBootstrap( Named.class );
+    }
+
+    public interface Trade
+    {
+        long getId();
+
+        void setId( long id );
+
+        double getPrice();
+
+        void setPrice( double price );
+
+        int getQuantity();
+
+        void setQuantity( int quantity );
+
+        boolean isActive();
+
+        void setActive( boolean active );
+
+        void close();
+    }
+
+    public interface Sloppy
+    {
+        long getaway();
+
+        void settle( long value );
+    }
+
+    public interface Named
+    {
+        String getName();
+    }
+}